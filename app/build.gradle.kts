@@ -55,7 +55,6 @@ android {
         annotationProcessor(libs.lombok)
         coreLibraryDesugaring(libs.desugar.jdk.libs.nio)
         implementation(libs.newpipeextractor)
-        implementation(libs.library)
         implementation(libs.isoparser)
         implementation(libs.gson)
         implementation(libs.commons.io)
@@ -51,6 +51,8 @@
 
 -dontobfuscate
 -keepclassmembers class com.hhst.youtubelite.common.VideoDetails { *; }
+-keepclassmembers class com.hhst.youtubelite.downloader.DownloadTask { *; }
+-keepclassmembers class com.hhst.youtubelite.downloader.SegmentJournal** { *; }
 -keep class com.googlecode.mp4parser.** { *; }
 -keep class com.coremedia.iso.** { *; }
 -keep class com.mp4parser.** { *; }
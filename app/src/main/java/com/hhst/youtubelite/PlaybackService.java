@@ -21,6 +21,7 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.media.session.MediaButtonReceiver;
+import com.hhst.youtubelite.downloader.BandwidthGovernor;
 import com.hhst.youtubelite.webview.YoutubeWebview;
 import java.io.IOException;
 import java.io.InputStream;
@@ -257,6 +258,7 @@ public class PlaybackService extends Service {
   }
 
   public void hideNotification() {
+    BandwidthGovernor.getInstance().setPlaybackActive(false);
     stopForeground(true);
     if (notificationManager != null) {
       notificationManager.cancel(NOTIFICATION_ID);
@@ -294,6 +296,12 @@ public class PlaybackService extends Service {
       }
     }
     lastIsPlayingState = isPlaying;
+    // downloads yield bandwidth to the player while it is playing
+    BandwidthGovernor.getInstance().setPlaybackActive(isPlaying);
+  }
+
+  public boolean isPlaying() {
+    return lastIsPlayingState;
   }
 
   @Override
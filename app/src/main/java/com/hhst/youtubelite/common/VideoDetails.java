@@ -14,9 +14,13 @@ public class VideoDetails {
   private String id;
   private String title;
   private String author;
+  private String authorUrl;
   private String description;
   private Long duration;
   private String thumbnail;
   private List<VideoStream> videoStreams;
   private AudioStream audioStream;
+  // the HLS playlist of a live stream, which is recorded rather than downloaded
+  private String hlsUrl;
+  private boolean live;
 }
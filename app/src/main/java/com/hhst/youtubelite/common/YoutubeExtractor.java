@@ -4,6 +4,7 @@ import androidx.annotation.Nullable;
 import com.google.gson.Gson;
 import com.tencent.mmkv.MMKV;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -16,7 +17,9 @@ import org.schabi.newpipe.extractor.NewPipe;
 import org.schabi.newpipe.extractor.ServiceList;
 import org.schabi.newpipe.extractor.exceptions.ExtractionException;
 import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
+import org.schabi.newpipe.extractor.stream.StreamType;
 import org.schabi.newpipe.extractor.stream.VideoStream;
 
 public class YoutubeExtractor {
@@ -42,23 +45,59 @@ public class YoutubeExtractor {
     }
     var extractor = new YoutubeExtractor();
     var info = extractor.extract("https://www.youtube.com/watch?v=" + videoID);
+    return extractor.cacheDetails(videoID, info);
+  }
+
+  /**
+   * Extracts the video again, bypassing the cache, and returns the current URL of the stream with
+   * the given itag. Used when a download outlives its stream URL and the server answers 403/410.
+   */
+  public static String refreshStreamUrl(String videoUrl, int itag)
+      throws ExtractionException, IOException {
+    String videoID = getVideoId(videoUrl);
+    if (videoID == null) {
+      throw new ExtractionException("Invalid YouTube URL: " + videoUrl);
+    }
+    var extractor = new YoutubeExtractor();
+    var info = extractor.extract("https://www.youtube.com/watch?v=" + videoID);
+    // the cached details carry the same expired URLs, replace them too
+    extractor.cacheDetails(videoID, info);
+    List<Stream> streams = new ArrayList<>(info.getVideoOnlyStreams());
+    streams.addAll(info.getAudioStreams());
+    streams.addAll(info.getVideoStreams());
+    for (var stream : streams) {
+      if (stream.getItagItem() != null && stream.getItagItem().id == itag && stream.isUrl()) {
+        return stream.getContent();
+      }
+    }
+    throw new ExtractionException("Stream " + itag + " is no longer available for " + videoID);
+  }
+
+  private VideoDetails cacheDetails(String videoID, StreamInfo info) {
     var details = new VideoDetails(
         info.getId(),
         info.getName(),
         info.getUploaderName(),
+        info.getUploaderUrl(),
         info.getDescription().getContent(),
         info.getDuration(),
-        extractor.getBestThumbnail(info),
-        extractor.getVideoOnlyStreams(info),
-        extractor.getBestAudioStream(info));
+        getBestThumbnail(info),
+        getVideoOnlyStreams(info),
+        getBestAudioStream(info),
+        info.getHlsUrl(),
+        info.getStreamType() == StreamType.LIVE_STREAM
+            || info.getStreamType() == StreamType.AUDIO_LIVE_STREAM);
+    // a live stream ends at some point, its details are looked up afresh
+    if (details.isLive()) return details;
     // 10 hours expires cache (as we know the streams will expire in 14 hours)
     cache.encode(videoID, gson.toJson(details, VideoDetails.class), 36000);
     return details;
   }
 
   @Nullable
-  private static String getVideoId(String videoUrl) {
-    Pattern pattern = Pattern.compile("/watch\\?v=([^&#]+)");
+  public static String getVideoId(String videoUrl) {
+    // live streams are also linked as /live/<id>
+    Pattern pattern = Pattern.compile("(?:/watch\\?v=|/live/)([^&#?/]+)");
     Matcher matcher = pattern.matcher(videoUrl);
     if (matcher.find()) {
       return matcher.group(1);
@@ -1,6 +1,7 @@
 package com.hhst.youtubelite.downloader;
 
 import java.io.File;
+import java.util.List;
 
 public interface AdvancedFileDownloader {
 
@@ -11,8 +12,31 @@ public interface AdvancedFileDownloader {
    * @param output The file where the downloaded content will be saved.
    * @param callback A callback to report progress and completion status.
    * @param tag A tag to identify the download task, allowing for cancellation or tracking.
+   * @param refresher Supplies a new URL when the current one expires mid-download, may be null.
    */
-  void download(String url, File output, ProgressCallback callback, String tag);
+  default void download(
+      String url, File output, ProgressCallback callback, String tag, UrlRefresher refresher) {
+    download(url, null, output, callback, tag, refresher);
+  }
+
+  /**
+   * Downloads only some byte ranges of the file at the URL, written one after the other to the
+   * output, e.g. the init segment and a few subsegments of a DASH stream.
+   *
+   * @param ranges Inclusive {@code {start, end}} offsets in the order they are written, or null for
+   *     the whole file.
+   */
+  void download(
+      String url,
+      List<long[]> ranges,
+      File output,
+      ProgressCallback callback,
+      String tag,
+      UrlRefresher refresher);
+
+  default void download(String url, File output, ProgressCallback callback, String tag) {
+    download(url, output, callback, tag, null);
+  }
 
   default void download(String url, File output, ProgressCallback callback) {
     download(url, output, callback, null);
@@ -24,7 +48,7 @@ public interface AdvancedFileDownloader {
         output,
         new ProgressCallback() {
           @Override
-          public void onProgress(int progress, String message) {}
+          public void onProgress(long downloaded, long total, long speed, String message) {}
 
           @Override
           public void onComplete(File file) {}
@@ -0,0 +1,122 @@
+package com.hhst.youtubelite.downloader;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket rate limits shared by all download engines: a global cap, optional per-task caps,
+ * and a lower cap that applies while the WebView player is playing so downloads don't make it
+ * rebuffer. A limit of 0 means unlimited.
+ */
+public class BandwidthGovernor {
+
+  private static final BandwidthGovernor instance = new BandwidthGovernor();
+
+  private final TokenBucket global = new TokenBucket(0);
+  private final Map<String, TokenBucket> tasks = new ConcurrentHashMap<>();
+  // transfers running under their own tag on behalf of a task
+  private final Map<String, String> owners = new ConcurrentHashMap<>();
+  private volatile long globalLimit;
+  private volatile long playbackLimit;
+  private volatile boolean playbackActive;
+
+  public static BandwidthGovernor getInstance() {
+    return instance;
+  }
+
+  public void setGlobalLimit(long bytesPerSecond) {
+    globalLimit = bytesPerSecond;
+    updateGlobalRate();
+  }
+
+  /** The cap for all downloads together while playback is active. */
+  public void setPlaybackLimit(long bytesPerSecond) {
+    playbackLimit = bytesPerSecond;
+    updateGlobalRate();
+  }
+
+  /** Fed from the playback state the WebView pushes through {@code updatePlayback}. */
+  public void setPlaybackActive(boolean active) {
+    if (playbackActive == active) return;
+    playbackActive = active;
+    updateGlobalRate();
+  }
+
+  public void setTaskLimit(String tag, long bytesPerSecond) {
+    if (bytesPerSecond > 0) {
+      tasks.computeIfAbsent(tag, k -> new TokenBucket(bytesPerSecond)).setRate(bytesPerSecond);
+    } else {
+      tasks.remove(tag);
+    }
+  }
+
+  public void removeTask(String tag) {
+    tasks.remove(tag);
+  }
+
+  /** Makes the transfers tagged {@code tag} count against the limit of the task {@code owner}. */
+  public void setOwner(String tag, String owner) {
+    owners.put(tag, owner);
+  }
+
+  public void removeOwner(String tag) {
+    owners.remove(tag);
+  }
+
+  /** Blocks the calling connection until it may account for {@code bytes} more bytes. */
+  public void acquire(String tag, long bytes) throws InterruptedException {
+    TokenBucket task = tag != null ? tasks.get(owners.getOrDefault(tag, tag)) : null;
+    long delay = Math.max(task != null ? task.reserve(bytes) : 0, global.reserve(bytes));
+    if (delay > 0) {
+      TimeUnit.NANOSECONDS.sleep(delay);
+    }
+  }
+
+  private void updateGlobalRate() {
+    long limit = globalLimit;
+    if (playbackActive && playbackLimit > 0) {
+      limit = limit > 0 ? Math.min(limit, playbackLimit) : playbackLimit;
+    }
+    global.setRate(limit);
+  }
+
+  private static class TokenBucket {
+    private long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(long rate) {
+      this.rate = rate;
+      this.tokens = rate;
+    }
+
+    synchronized void setRate(long rate) {
+      refill();
+      this.rate = rate;
+      tokens = Math.min(tokens, rate);
+    }
+
+    /**
+     * Takes the tokens, going into debt if needed.
+     *
+     * @return how long the caller has to wait for the debt to be paid off, in nanoseconds.
+     */
+    synchronized long reserve(long bytes) {
+      if (rate <= 0) return 0;
+      refill();
+      tokens -= bytes;
+      return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    private void refill() {
+      long now = System.nanoTime();
+      if (rate > 0) {
+        // allow bursts of up to one second worth of bytes
+        double refilled = (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(rate, tokens + refilled);
+      }
+      lastRefill = now;
+    }
+  }
+}
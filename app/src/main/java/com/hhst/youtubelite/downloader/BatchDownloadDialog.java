@@ -0,0 +1,125 @@
+package com.hhst.youtubelite.downloader;
+
+import android.content.Context;
+import android.content.Intent;
+import android.widget.Toast;
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.hhst.youtubelite.MainActivity;
+import com.hhst.youtubelite.R;
+import com.hhst.youtubelite.common.VideoDetails;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** Asks for one quality for all videos of a playlist or channel, see {@link BatchDownloader}. */
+public class BatchDownloadDialog {
+  private final Context context;
+
+  public BatchDownloadDialog(Context context) {
+    this.context = context;
+  }
+
+  /** Asks for the quality, then downloads every video listed at {@code url}. */
+  public void show(String url) {
+    int[] checked = {0};
+    MaterialAlertDialogBuilder builder =
+        new MaterialAlertDialogBuilder(context)
+            .setTitle(R.string.batch_quality)
+            .setSingleChoiceItems(
+                R.array.batch_qualities, 0, (dialog, which) -> checked[0] = which)
+            .setNegativeButton(R.string.cancel, null)
+            .setPositiveButton(
+                R.string.download,
+                (dialog, which) -> start(url, BatchDownloader.Quality.values()[checked[0]], false));
+    DownloadService service = getService();
+    String subscribed = service != null ? service.findSubscribedChannel(url) : null;
+    if (subscribed != null) {
+      builder.setNeutralButton(
+          R.string.unsync_channel, (dialog, which) -> unsubscribe(service, subscribed));
+    } else if (BatchDownloader.isChannelUrl(url)) {
+      // only what the channel uploads from now on
+      builder.setNeutralButton(
+          R.string.sync_channel,
+          (dialog, which) -> start(url, BatchDownloader.Quality.values()[checked[0]], true));
+    }
+    builder.show();
+  }
+
+  /** Lists the channels kept in sync, picking one stops its sync. */
+  void showSubscriptions() {
+    DownloadService service = getService();
+    if (service == null) return;
+    Map<String, String> channels = service.getSubscribedChannels();
+    List<String> channelIds = new ArrayList<>(channels.keySet());
+    new MaterialAlertDialogBuilder(context)
+        .setTitle(R.string.synced_channels)
+        .setItems(
+            channels.values().toArray(new String[0]),
+            (dialog, which) -> unsubscribe(service, channelIds.get(which)))
+        .setNegativeButton(R.string.cancel, null)
+        .show();
+  }
+
+  private void unsubscribe(DownloadService service, String channelId) {
+    service.unsubscribeChannel(channelId);
+    Toast.makeText(context, R.string.channel_unsubscribed, Toast.LENGTH_SHORT).show();
+  }
+
+  /** Offers the playlist a video is played from and the channel of its uploader. */
+  void showSources(String videoUrl, VideoDetails details) {
+    List<String> urls = new ArrayList<>();
+    List<String> labels = new ArrayList<>();
+    String playlistUrl = BatchDownloader.getPlaylistUrl(videoUrl);
+    if (playlistUrl != null) {
+      urls.add(playlistUrl);
+      labels.add(context.getString(R.string.batch_playlist));
+    }
+    if (details != null && BatchDownloader.isBatchUrl(details.getAuthorUrl())) {
+      urls.add(details.getAuthorUrl());
+      labels.add(context.getString(R.string.batch_channel, details.getAuthor()));
+    }
+    DownloadService service = getService();
+    int synced = service != null ? service.getSubscribedChannels().size() : 0;
+    if (synced > 0) {
+      // null stands for the list of synced channels
+      urls.add(null);
+      labels.add(context.getString(R.string.synced_channels_count, synced));
+    }
+    if (urls.isEmpty()) {
+      Toast.makeText(context, R.string.nothing_to_batch, Toast.LENGTH_SHORT).show();
+    } else if (urls.size() == 1 && urls.get(0) != null) {
+      show(urls.get(0));
+    } else {
+      new MaterialAlertDialogBuilder(context)
+          .setTitle(R.string.batch_download)
+          .setItems(
+              labels.toArray(new String[0]),
+              (dialog, which) -> {
+                if (urls.get(which) != null) {
+                  show(urls.get(which));
+                } else {
+                  showSubscriptions();
+                }
+              })
+          .show();
+    }
+  }
+
+  private DownloadService getService() {
+    return context instanceof MainActivity activity ? activity.getDownloadService() : null;
+  }
+
+  private void start(String url, BatchDownloader.Quality quality, boolean sync) {
+    // keeps the service running while the batch outlives the activity
+    context.startService(new Intent(context, DownloadService.class));
+    if (context instanceof MainActivity activity) {
+      DownloadService service = activity.getDownloadService();
+      if (service == null) return;
+      if (sync) {
+        service.subscribeChannel(url, quality);
+      } else {
+        service.downloadBatch(url, quality);
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import com.hhst.youtubelite.common.DownloaderImpl;
+import com.hhst.youtubelite.common.VideoDetails;
+import com.hhst.youtubelite.common.YoutubeExtractor;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.schabi.newpipe.extractor.InfoItem;
+import org.schabi.newpipe.extractor.ListExtractor.InfoItemsPage;
+import org.schabi.newpipe.extractor.NewPipe;
+import org.schabi.newpipe.extractor.Page;
+import org.schabi.newpipe.extractor.ServiceList;
+import org.schabi.newpipe.extractor.StreamingService;
+import org.schabi.newpipe.extractor.channel.ChannelInfo;
+import org.schabi.newpipe.extractor.channel.tabs.ChannelTabInfo;
+import org.schabi.newpipe.extractor.channel.tabs.ChannelTabs;
+import org.schabi.newpipe.extractor.linkhandler.ListLinkHandler;
+import org.schabi.newpipe.extractor.playlist.PlaylistInfo;
+import org.schabi.newpipe.extractor.stream.StreamInfoItem;
+import org.schabi.newpipe.extractor.stream.VideoStream;
+
+/**
+ * Downloads every video of a playlist or channel with one {@link Quality} for all of them. Pages
+ * of the list are fetched as needed and each video is extracted just before it is queued, while
+ * the ones before it download. Extraction stays at most as many videos ahead as downloads run at
+ * once, since stream URLs expire and a long list would otherwise be extracted up front.
+ */
+public class BatchDownloader {
+
+  private static final String TAG = "BatchDownloader";
+  private static final Pattern PLAYLIST_ID = Pattern.compile("[?&]list=([^&#]+)");
+  private static final Pattern CHANNEL_URL =
+      Pattern.compile("^https?://(www\\.|m\\.)?youtube\\.com/(@|channel/|c/|user/)[^/?#]+");
+
+  /** The stream picked from each video of a batch. */
+  public enum Quality {
+    BEST(Integer.MAX_VALUE),
+    UP_TO_1080P(1080),
+    UP_TO_720P(720),
+    UP_TO_480P(480),
+    AUDIO_ONLY(0);
+
+    final int maxHeight;
+
+    Quality(int maxHeight) {
+      this.maxHeight = maxHeight;
+    }
+
+    /** The tallest stream within the limit, or the smallest one if none is. */
+    VideoStream select(List<VideoStream> streams) {
+      VideoStream best = null;
+      VideoStream smallest = null;
+      for (VideoStream stream : streams) {
+        if (smallest == null || stream.getHeight() < smallest.getHeight()) smallest = stream;
+        if (stream.getHeight() <= maxHeight
+            && (best == null || stream.getHeight() > best.getHeight())) {
+          best = stream;
+        }
+      }
+      return best != null ? best : smallest;
+    }
+  }
+
+  private final DownloadService service;
+  private final String url;
+  private final Quality quality;
+  private int found;
+  private int queued;
+
+  BatchDownloader(DownloadService service, String url, Quality quality) {
+    this.service = service;
+    this.url = url;
+    this.quality = quality;
+  }
+
+  /** Whether the url lists videos, i.e. is a playlist or channel page rather than a video. */
+  public static boolean isBatchUrl(String url) {
+    return url != null && (isChannelUrl(url) || url.contains("/playlist?"));
+  }
+
+  /** The playlist a watch url plays from, e.g. {@code /watch?v=..&list=PL..}, or null. */
+  static String getPlaylistUrl(String url) {
+    Matcher matcher = PLAYLIST_ID.matcher(url);
+    return matcher.find() ? "https://www.youtube.com/playlist?list=" + matcher.group(1) : null;
+  }
+
+  static boolean isChannelUrl(String url) {
+    return CHANNEL_URL.matcher(url).find();
+  }
+
+  /**
+   * Walks the list and queues its videos, blocking while the download queue is full.
+   *
+   * @return how many videos were queued and how many the list had, {@code {queued, found}}.
+   */
+  int[] run() throws Exception {
+    NewPipe.init(DownloaderImpl.getInstance());
+    StreamingService youtube = ServiceList.YouTube;
+    if (isChannelUrl(url)) {
+      ListLinkHandler tab = getVideosTab(ChannelInfo.getInfo(youtube, url));
+      ChannelTabInfo info = ChannelTabInfo.getInfo(youtube, tab);
+      add(info.getRelatedItems());
+      Page page = info.getNextPage();
+      while (Page.isValid(page)) {
+        InfoItemsPage<InfoItem> more = ChannelTabInfo.getMoreItems(youtube, tab, page);
+        add(more.getItems());
+        page = more.getNextPage();
+      }
+    } else {
+      PlaylistInfo info = PlaylistInfo.getInfo(youtube, url);
+      add(info.getRelatedItems());
+      Page page = info.getNextPage();
+      while (Page.isValid(page)) {
+        InfoItemsPage<StreamInfoItem> more = PlaylistInfo.getMoreItems(youtube, url, page);
+        add(more.getItems());
+        page = more.getNextPage();
+      }
+    }
+    return new int[] {queued, found};
+  }
+
+  private static ListLinkHandler getVideosTab(ChannelInfo channel) throws Exception {
+    for (ListLinkHandler tab : channel.getTabs()) {
+      if (tab.getContentFilters().contains(ChannelTabs.VIDEOS)) return tab;
+    }
+    throw new IllegalArgumentException("No videos tab in " + channel.getUrl());
+  }
+
+  private void add(List<? extends InfoItem> items) throws InterruptedException {
+    for (InfoItem item : items) {
+      if (!(item instanceof StreamInfoItem)) continue;
+      ++found;
+      service.awaitQueueRoom();
+      DownloadTask task;
+      try {
+        task = createTask(item.getUrl(), YoutubeExtractor.info(item.getUrl()), quality);
+      } catch (Exception e) {
+        // private, removed or age-restricted videos are skipped, not the whole batch
+        Log.w(TAG, "skipping " + item.getUrl(), e);
+        continue;
+      }
+      if (task == null) continue;
+      service.initiateDownload(task, DownloadQueue.PRIORITY_BATCH);
+      ++queued;
+    }
+  }
+
+  /** The task for a video at the given quality, or null if it has no streams to download. */
+  static DownloadTask createTask(String videoUrl, VideoDetails details, Quality quality) {
+    if (details == null || details.getAudioStream() == null) return null;
+    DownloadTask task = new DownloadTask();
+    task.setUrl(videoUrl);
+    task.setFileName(
+        DownloadDialog.sanitizeFileName(
+            String.format("%s-%s", details.getTitle(), details.getAuthor())));
+    task.setThumbnail(details.getThumbnail());
+    task.setAudioStream(details.getAudioStream());
+    if (quality == Quality.AUDIO_ONLY) {
+      task.setIsAudio(true);
+      return task;
+    }
+    List<VideoStream> streams = details.getVideoStreams();
+    if (streams == null || streams.isEmpty()) return null;
+    task.setVideoStream(quality.select(streams));
+    task.setIsAudio(false);
+    return task;
+  }
+}
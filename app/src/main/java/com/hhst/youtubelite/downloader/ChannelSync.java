@@ -0,0 +1,258 @@
+package com.hhst.youtubelite.downloader;
+
+import android.text.Html;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.hhst.youtubelite.common.DownloaderImpl;
+import com.hhst.youtubelite.common.YoutubeExtractor;
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.HttpStatusException;
+import com.tencent.mmkv.MMKV;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.IOUtils;
+import org.schabi.newpipe.extractor.NewPipe;
+import org.schabi.newpipe.extractor.ServiceList;
+import org.schabi.newpipe.extractor.channel.ChannelInfo;
+
+/**
+ * Keeps subscribed channels downloaded for offline use. A sync fetches the channel's RSS feed, a
+ * few KB listing its latest uploads, with a conditional request, so an unchanged channel costs one
+ * 304 and nothing is extracted. Uploads missing from the persisted seen ids are queued at batch
+ * priority; the ones a channel had when it was subscribed count as seen.
+ */
+public class ChannelSync {
+
+  private static final String TAG = "ChannelSync";
+  private static final String FEED_URL = "https://www.youtube.com/feeds/videos.xml?channel_id=";
+  private static final Pattern CHANNEL_ID = Pattern.compile("/channel/(UC[\\w-]+)");
+  private static final Pattern VIDEO_ID = Pattern.compile("<yt:videoId>([^<]+)</yt:videoId>");
+  // the first author of the feed is the channel itself
+  private static final Pattern AUTHOR = Pattern.compile("<author>\\s*<name>([^<]+)</name>");
+  private static final int TIMEOUT = 15_000;
+  // the feed lists the latest 15 uploads, the rest only guards against ones that come back
+  private static final int MAX_SEEN = 100;
+  static final long SYNC_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+  private static final Gson gson = new Gson();
+
+  private final DownloadService service;
+  private final MMKV store;
+
+  ChannelSync(DownloadService service, String id) {
+    this.service = service;
+    store = MMKV.mmkvWithID(id);
+  }
+
+  /** Subscribes a channel page, e.g. {@code /@handle} or {@code /channel/UC..}. */
+  void subscribe(String channelUrl, BatchDownloader.Quality quality) throws Exception {
+    String channelId = getChannelId(channelUrl);
+    Subscription subscription = load(channelId);
+    if (subscription == null) {
+      subscription = new Subscription();
+      subscription.channelId = channelId;
+    }
+    subscription.url = channelUrl;
+    subscription.quality = quality;
+    // what is there now is not new, only later uploads are downloaded
+    List<String> videoIds = fetch(subscription);
+    if (videoIds != null) {
+      for (String videoId : videoIds) {
+        if (!subscription.seen.contains(videoId)) subscription.seen.add(videoId);
+      }
+    }
+    subscription.lastSync = System.currentTimeMillis();
+    save(subscription);
+  }
+
+  synchronized void unsubscribe(String channelId) {
+    store.removeValueForKey(channelId);
+  }
+
+  /** The ids of the subscribed channels. */
+  List<String> getSubscriptions() {
+    String[] keys = store.allKeys();
+    return keys != null ? Arrays.asList(keys) : Collections.emptyList();
+  }
+
+  /** The names of the subscribed channels by id, the id where the feed gave no name yet. */
+  Map<String, String> getNames() {
+    Map<String, String> names = new LinkedHashMap<>();
+    for (String channelId : getSubscriptions()) {
+      Subscription subscription = load(channelId);
+      if (subscription == null) continue;
+      names.put(channelId, subscription.name != null ? subscription.name : channelId);
+    }
+    return names;
+  }
+
+  /**
+   * Finds the subscription of a channel page without extracting it.
+   *
+   * @return the id of the channel, null if it is not subscribed or only under another url.
+   */
+  String findSubscription(String channelUrl) {
+    Matcher matcher = CHANNEL_ID.matcher(channelUrl);
+    if (matcher.find()) return load(matcher.group(1)) != null ? matcher.group(1) : null;
+    for (String channelId : getSubscriptions()) {
+      Subscription subscription = load(channelId);
+      if (subscription != null && channelUrl.equals(subscription.url)) return channelId;
+    }
+    return null;
+  }
+
+  /**
+   * Syncs the channels whose last sync is older than {@link #SYNC_INTERVAL_MS}, blocking while the
+   * download queue is full.
+   *
+   * @return how many uploads were queued.
+   */
+  int syncAll() throws InterruptedException {
+    int queued = 0;
+    for (String channelId : getSubscriptions()) {
+      Subscription subscription = load(channelId);
+      if (subscription == null
+          || System.currentTimeMillis() - subscription.lastSync < SYNC_INTERVAL_MS) continue;
+      queued += sync(subscription);
+    }
+    return queued;
+  }
+
+  private int sync(Subscription subscription) throws InterruptedException {
+    List<String> videoIds;
+    try {
+      videoIds = fetch(subscription);
+    } catch (IOException e) {
+      // offline or a hiccup, the next round tries again
+      Log.w(TAG, "failed to fetch the feed of " + subscription.channelId, e);
+      return 0;
+    }
+    subscription.lastSync = System.currentTimeMillis();
+    if (videoIds == null) {
+      saveIfSubscribed(subscription);
+      return 0;
+    }
+    List<String> uploads = new ArrayList<>();
+    for (String videoId : videoIds) {
+      if (!subscription.seen.contains(videoId)) uploads.add(videoId);
+    }
+    // the feed is newest first, queue in upload order
+    Collections.reverse(uploads);
+    int queued = 0;
+    boolean retry = false;
+    for (String videoId : uploads) {
+      service.awaitQueueRoom();
+      String videoUrl = "https://www.youtube.com/watch?v=" + videoId;
+      try {
+        DownloadTask task =
+            BatchDownloader.createTask(
+                videoUrl, YoutubeExtractor.info(videoUrl), subscription.quality);
+        if (task == null) {
+          // e.g. an upcoming premiere, it has streams on a later sync
+          retry = true;
+          continue;
+        }
+        service.initiateDownload(task, DownloadQueue.PRIORITY_BATCH);
+        ++queued;
+      } catch (Exception e) {
+        Log.w(TAG, "failed to extract " + videoUrl, e);
+        retry = true;
+        continue;
+      }
+      subscription.seen.add(videoId);
+    }
+    while (subscription.seen.size() > MAX_SEEN) {
+      subscription.seen.remove(0);
+    }
+    if (retry) {
+      // an unchanged feed would answer 304 and the skipped uploads would never be looked at again
+      subscription.etag = null;
+      subscription.lastModified = null;
+    }
+    saveIfSubscribed(subscription);
+    return queued;
+  }
+
+  /**
+   * Fetches the ids of the latest uploads, newest first.
+   *
+   * @return null if the feed has not changed since the last fetch.
+   */
+  private static List<String> fetch(Subscription subscription) throws IOException {
+    String url = FEED_URL + subscription.channelId;
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(TIMEOUT);
+    connection.setReadTimeout(TIMEOUT);
+    if (subscription.etag != null) {
+      connection.setRequestProperty("If-None-Match", subscription.etag);
+    }
+    if (subscription.lastModified != null) {
+      connection.setRequestProperty("If-Modified-Since", subscription.lastModified);
+    }
+    try {
+      int code = connection.getResponseCode();
+      if (code == HttpURLConnection.HTTP_NOT_MODIFIED) return null;
+      if (code >= 400) throw new HttpStatusException(code, url);
+      String feed;
+      try (InputStream in = connection.getInputStream()) {
+        feed = IOUtils.toString(in, StandardCharsets.UTF_8);
+      }
+      subscription.etag = connection.getHeaderField("ETag");
+      subscription.lastModified = connection.getHeaderField("Last-Modified");
+      Matcher author = AUTHOR.matcher(feed);
+      if (author.find()) subscription.name = Html.fromHtml(author.group(1), 0).toString();
+      List<String> videoIds = new ArrayList<>();
+      Matcher matcher = VIDEO_ID.matcher(feed);
+      while (matcher.find()) {
+        videoIds.add(matcher.group(1));
+      }
+      return videoIds;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  // handles and custom urls need one extraction to learn the id, the feed only takes ids
+  private static String getChannelId(String channelUrl) throws Exception {
+    Matcher matcher = CHANNEL_ID.matcher(channelUrl);
+    if (matcher.find()) return matcher.group(1);
+    NewPipe.init(DownloaderImpl.getInstance());
+    return ChannelInfo.getInfo(ServiceList.YouTube, channelUrl).getId();
+  }
+
+  private Subscription load(String channelId) {
+    return gson.fromJson(store.decodeString(channelId, null), Subscription.class);
+  }
+
+  private void save(Subscription subscription) {
+    store.encode(subscription.channelId, gson.toJson(subscription));
+  }
+
+  // a channel unsubscribed while it synced stays unsubscribed
+  private synchronized void saveIfSubscribed(Subscription subscription) {
+    if (store.containsKey(subscription.channelId)) save(subscription);
+  }
+
+  private static class Subscription {
+    String channelId;
+    // the page it was subscribed from, and the name for the list of subscriptions
+    String url;
+    String name;
+    BatchDownloader.Quality quality;
+    String etag;
+    String lastModified;
+    long lastSync;
+    // oldest first
+    List<String> seen = new ArrayList<>();
+  }
+}
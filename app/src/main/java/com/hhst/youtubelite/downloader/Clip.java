@@ -0,0 +1,374 @@
+package com.hhst.youtubelite.downloader;
+
+import com.hhst.youtubelite.common.YoutubeExtractor;
+import com.hhst.youtubelite.downloader.SegmentIndex.Reference;
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.HttpStatusException;
+import com.hhst.youtubelite.downloader.StreamingMp4Muxer.Fragment;
+import com.hhst.youtubelite.downloader.StreamingMp4Muxer.Track;
+import com.hhst.youtubelite.downloader.StreamingMp4Muxer.UnsupportedLayoutException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import org.schabi.newpipe.extractor.services.youtube.ItagItem;
+import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.Stream;
+import org.schabi.newpipe.extractor.stream.VideoStream;
+
+/**
+ * A time range of a video, downloaded without the rest of it. {@link #plan} looks the range up in
+ * the segment index of each stream, and each stream is then fetched as its init segment followed
+ * by the subsegments covering the range, so a few minutes out of a long video cost a few minutes of
+ * bytes. The range widens to subsegment boundaries, a few seconds at most.
+ *
+ * <p>The fetched fragments keep their decode times, {@link #rebase} moves them back to start at
+ * zero before the streams are muxed.
+ *
+ * <p>A clip can also leave segments out, e.g. the sponsors {@link SponsorBlock} knows of. The
+ * subsegments inside them are not fetched, and {@link StreamingMp4Muxer} drops the samples of the
+ * cuts and closes the gaps instead of the rebase. Video resumes at a keyframe only, so the end of
+ * every cut moves to the nearest subsegment boundary of the video.
+ */
+public class Clip {
+
+  private static final Pattern TIME = Pattern.compile("\\d+(:\\d+){0,2}(\\.\\d+)?");
+  // how much more audio is fetched around a cut, the muxer may end a cut a little earlier
+  private static final long AUDIO_MARGIN = 1000;
+
+  // milliseconds into the video, end is Long.MAX_VALUE for the rest of it
+  private final long start;
+  private final long end;
+  // the SponsorBlock categories to cut, looked up when the download starts
+  private List<String> categories;
+  // the segments left out, sorted, in milliseconds into the video
+  private List<long[]> cuts = new ArrayList<>();
+  // the inclusive byte ranges each stream is fetched as, set by plan()
+  private List<long[]> videoRanges;
+  private List<long[]> audioRanges;
+
+  public Clip(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  /** A clip of the whole video, to leave segments out of it. */
+  public static Clip whole() {
+    return new Clip(0, Long.MAX_VALUE);
+  }
+
+  public boolean isWhole() {
+    return start == 0 && end == Long.MAX_VALUE;
+  }
+
+  public List<String> getCategories() {
+    return categories;
+  }
+
+  public void setCategories(List<String> categories) {
+    this.categories = categories;
+  }
+
+  /** Whether segments are left out, which needs the muxer to cut them. */
+  public boolean isCut() {
+    return !cuts.isEmpty();
+  }
+
+  /** Sets the segments to leave out, in milliseconds into the video. */
+  public void setCuts(List<long[]> cuts) {
+    this.cuts = merge(cuts);
+  }
+
+  /**
+   * Everything the muxer leaves out: the segments, and the video before and after the clip, which
+   * is partly fetched as the clip widens to subsegment boundaries.
+   */
+  List<long[]> getMuxCuts() {
+    List<long[]> ranges = new ArrayList<>(cuts);
+    if (start > 0) ranges.add(new long[] {0, start});
+    if (end != Long.MAX_VALUE) ranges.add(new long[] {end, Long.MAX_VALUE});
+    return merge(ranges);
+  }
+
+  List<long[]> getRanges(boolean video) {
+    return video ? videoRanges : audioRanges;
+  }
+
+  /** The bytes fetched for one stream, 0 before {@link #plan}. */
+  long getLength(boolean video) {
+    List<long[]> ranges = getRanges(video);
+    return ranges != null ? SegmentedFileDownloader.length(ranges) : 0;
+  }
+
+  /**
+   * Fetches the segment index of the streams and picks the bytes covering the clip.
+   *
+   * @param videoStream null for an audio-only download.
+   * @throws UnsupportedLayoutException if a stream has no segment index, e.g. WebM.
+   */
+  void plan(String videoUrl, VideoStream videoStream, AudioStream audioStream) throws Exception {
+    SegmentIndex audioIndex = fetchIndex(videoUrl, audioStream);
+    if (videoStream != null) {
+      SegmentIndex videoIndex = fetchIndex(videoUrl, videoStream);
+      cuts = snapCuts(videoIndex);
+      videoRanges = plan(videoStream, videoIndex, getKept(videoIndex, 0));
+    }
+    audioRanges = plan(audioStream, audioIndex, getKept(audioIndex, isCut() ? AUDIO_MARGIN : 0));
+  }
+
+  private static SegmentIndex fetchIndex(String videoUrl, Stream stream) throws Exception {
+    ItagItem itag = stream.getItagItem();
+    if (itag == null || itag.getInitEnd() <= 0 || itag.getIndexEnd() <= itag.getIndexStart()) {
+      throw new UnsupportedLayoutException("No segment index for " + stream.getFormat());
+    }
+    try {
+      return SegmentIndex.fetch(stream.getContent(), itag.getIndexStart(), itag.getIndexEnd());
+    } catch (HttpStatusException e) {
+      // the streams of a task restored after a while have expired
+      if (!SegmentedFileDownloader.isExpired(e)) throw e;
+      String url = YoutubeExtractor.refreshStreamUrl(videoUrl, itag.id);
+      return SegmentIndex.fetch(url, itag.getIndexStart(), itag.getIndexEnd());
+    }
+  }
+
+  /** The init segment and the runs of subsegments overlapping the kept time ranges. */
+  private static List<long[]> plan(Stream stream, SegmentIndex index, List<long[]> kept)
+      throws IOException {
+    List<Reference> references = new ArrayList<>();
+    for (long[] range : kept) {
+      for (Reference reference : index.select(range[0], range[1])) {
+        if (!references.contains(reference)) references.add(reference);
+      }
+    }
+    if (references.isEmpty()) throw new IOException("The clip is past the end of the video");
+    // subsegments are stored in order, neighbours join into one range
+    references.sort((a, b) -> Long.compare(a.offset, b.offset));
+    List<long[]> ranges = new ArrayList<>();
+    ranges.add(new long[] {0, stream.getItagItem().getInitEnd()});
+    for (Reference reference : references) {
+      long[] last = ranges.get(ranges.size() - 1);
+      if (last[1] + 1 == reference.offset) {
+        last[1] = reference.end();
+      } else {
+        ranges.add(new long[] {reference.offset, reference.end()});
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * The time ranges of the clip outside the cuts, in milliseconds.
+   *
+   * @param margin how far each range reaches into the cuts around it.
+   */
+  private List<long[]> getKept(SegmentIndex index, long margin) {
+    List<long[]> kept = new ArrayList<>();
+    long from = start;
+    long to = Math.min(end, index.getDuration());
+    for (long[] cut : cuts) {
+      if (cut[0] > from && from < to) kept.add(new long[] {from, Math.min(cut[0] + margin, to)});
+      from = Math.max(from, cut[1] - margin);
+    }
+    if (from < to) kept.add(new long[] {from, to});
+    return kept;
+  }
+
+  /**
+   * Moves the end of every cut to the nearest subsegment boundary of the video behind its start,
+   * which is where the video can resume. A cut past the end of the video is dropped.
+   */
+  private List<long[]> snapCuts(SegmentIndex video) {
+    List<long[]> snapped = new ArrayList<>();
+    long end = video.getDuration();
+    for (long[] cut : cuts) {
+      if (cut[0] >= end) continue;
+      // the end of the video is a boundary too
+      long best = end;
+      for (Reference reference : video.references) {
+        long boundary = reference.time * 1000 / video.timescale;
+        if (boundary > cut[0] && Math.abs(boundary - cut[1]) < Math.abs(best - cut[1])) {
+          best = boundary;
+        }
+      }
+      snapped.add(new long[] {cut[0], best});
+    }
+    return merge(snapped);
+  }
+
+  // sorts time ranges and joins the ones that overlap
+  private static List<long[]> merge(List<long[]> ranges) {
+    List<long[]> sorted = new ArrayList<>(ranges);
+    sorted.sort((a, b) -> Long.compare(a[0], b[0]));
+    List<long[]> merged = new ArrayList<>();
+    for (long[] range : sorted) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && range[0] <= last[1]) {
+        last[1] = Math.max(last[1], range[1]);
+      } else {
+        merged.add(new long[] {range[0], range[1]});
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Moves the decode times of the fragmented MP4 streams of a clip back by one amount, so the
+   * earliest of them starts at zero and they stay in sync. The amount is taken from the files, so
+   * rebasing them again changes nothing, e.g. when a restored task merges once more.
+   */
+  static void rebase(File... files) throws IOException {
+    List<Leg> legs = new ArrayList<>();
+    try {
+      for (File file : files) {
+        legs.add(new Leg(file));
+      }
+      long base = Long.MAX_VALUE;
+      for (Leg leg : legs) {
+        base = Math.min(base, leg.getStart());
+      }
+      for (Leg leg : legs) {
+        leg.shift(base);
+      }
+    } finally {
+      for (Leg leg : legs) {
+        leg.close();
+      }
+    }
+  }
+
+  /**
+   * Parses {@code h:mm:ss}, {@code m:ss} or seconds, each with an optional fraction.
+   *
+   * @return the time in milliseconds, or -1 if it is not one.
+   */
+  public static long parseTime(String text) {
+    text = text.trim();
+    if (!TIME.matcher(text).matches()) return -1;
+    double seconds = 0;
+    for (String part : text.split(":")) {
+      seconds = seconds * 60 + Double.parseDouble(part);
+    }
+    return Math.round(seconds * 1000);
+  }
+
+  /** Formats milliseconds as {@code h:mm:ss} or {@code m:ss}. */
+  public static String formatTime(long millis) {
+    long seconds = millis / 1000;
+    return seconds >= 3600
+        ? String.format(Locale.US, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+        : String.format(Locale.US, "%d:%02d", seconds / 60, seconds % 60);
+  }
+
+  /** Names the range for a file name, e.g. {@code 12.30-15.00}. */
+  public String describe() {
+    return (formatTime(start) + "-" + formatTime(end)).replace(':', '.');
+  }
+
+  /** A fragmented MP4 stream of a clip, opened for rewriting its decode times in place. */
+  private static class Leg implements Closeable {
+    final FileChannel channel;
+    final Mp4Box.Header moovHeader;
+    final Mp4Box moov;
+    final Track track;
+    final List<Mp4Box.Header> moofs = new ArrayList<>();
+    final List<Mp4Box> tfdts = new ArrayList<>();
+    final List<Fragment> fragments = new ArrayList<>();
+
+    Leg(File file) throws IOException {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        List<Mp4Box.Header> headers = Mp4Box.scan(channel);
+        Mp4Box.Header found = null;
+        for (Mp4Box.Header header : headers) {
+          if (header.type.equals("moov")) found = header;
+        }
+        if (found == null) throw new UnsupportedLayoutException("No moov box");
+        moovHeader = found;
+        moov = Mp4Box.read(channel, moovHeader);
+        Mp4Box hdlr = moov.find("trak/mdia/hdlr");
+        if (hdlr == null || moov.child("mvex") == null) {
+          throw new UnsupportedLayoutException("Not a fragmented stream");
+        }
+        track = new Track(moov, StreamingMp4Muxer.fourCc(hdlr.payload, 8), 1);
+        long decodeTime = 0;
+        for (int i = 0; i < headers.size(); ++i) {
+          Mp4Box.Header header = headers.get(i);
+          if (!header.type.equals("moof")) continue;
+          long end = header.end();
+          while (i + 1 < headers.size() && headers.get(i + 1).type.equals("mdat")) {
+            end = headers.get(++i).end();
+          }
+          Mp4Box moof = Mp4Box.read(channel, header);
+          Mp4Box tfdt = moof.find("traf/tfdt");
+          if (tfdt == null) throw new UnsupportedLayoutException("Fragment without tfdt");
+          Fragment fragment = track.fragment(moof, header, end, decodeTime);
+          moofs.add(header);
+          tfdts.add(tfdt);
+          fragments.add(fragment);
+          decodeTime = fragment.decodeTime + fragment.duration;
+        }
+        if (fragments.isEmpty()) throw new UnsupportedLayoutException("No fragments");
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    // in microseconds
+    long getStart() {
+      return fragments.get(0).decodeTime * 1_000_000 / track.mediaTimescale;
+    }
+
+    /** Moves every fragment back by {@code base} microseconds and fixes the movie duration. */
+    void shift(long base) throws IOException {
+      long ticks = base * track.mediaTimescale / 1_000_000;
+      long end = 0;
+      for (int i = 0; i < moofs.size(); ++i) {
+        Fragment fragment = fragments.get(i);
+        put(moofs.get(i), tfdts.get(i), fragment.decodeTime - ticks);
+        end = Math.max(end, fragment.decodeTime + fragment.duration - ticks);
+      }
+      // the init segment tells the length of the whole video
+      Mp4Box mehd = moov.find("mvex/mehd");
+      Mp4Box mvhd = moov.child("mvhd");
+      if (mehd != null && mvhd != null) {
+        long timescale = mvhd.payload.getInt(mvhd.version() == 1 ? 20 : 12) & 0xFFFFFFFFL;
+        put(moovHeader, mehd, end * timescale / track.mediaTimescale);
+      }
+    }
+
+    // writes the 32 or 64-bit value behind the version and flags of a full box in the file
+    private void put(Mp4Box.Header parent, Mp4Box box, long value) throws IOException {
+      // a parsed box is a slice of its top-level box, which was read as a whole from the file
+      long position = parent.offset + parent.headerSize + box.payload.arrayOffset() + 4;
+      ByteBuffer buffer = ByteBuffer.allocate(box.version() == 1 ? 8 : 4);
+      if (box.version() == 1) {
+        buffer.putLong(value);
+      } else {
+        buffer.putInt((int) value);
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
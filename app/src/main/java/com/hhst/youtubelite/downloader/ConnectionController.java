@@ -0,0 +1,129 @@
+package com.hhst.youtubelite.downloader;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Adapts the number of concurrent segment connections with additive increase and multiplicative
+ * decrease (AIMD). The limit grows by one connection after every clean measuring window and shrinks
+ * when requests fail, the server answers 429/503, or the per-connection throughput collapses.
+ */
+public class ConnectionController {
+
+  private static final long WINDOW = 2000;
+  private static final double ERROR_DECREASE = 0.75;
+  private static final double THROTTLE_DECREASE = 0.5;
+  // per-connection throughput below this share of the last window means the link is saturated
+  private static final double SATURATION = 0.5;
+
+  private final int min;
+  private final int max;
+  private final LongSupplier clock;
+  private double limit;
+  private int active;
+  private long windowStart;
+  private long windowBytes;
+  private int windowActive;
+  private double lastPerConnection;
+  private long lastDecrease;
+  private String decision = "";
+
+  public ConnectionController(int min, int initial, int max) {
+    this(min, initial, max, System::currentTimeMillis);
+  }
+
+  ConnectionController(int min, int initial, int max, LongSupplier clock) {
+    this.min = min;
+    this.max = max;
+    this.limit = initial;
+    this.clock = clock;
+    this.windowStart = clock.getAsLong();
+    this.lastDecrease = windowStart - WINDOW;
+  }
+
+  /** Blocks until one more connection fits in the current limit. */
+  public synchronized void acquire() throws InterruptedException {
+    while (active >= getLimit()) {
+      wait();
+    }
+    ++active;
+    windowActive = Math.max(windowActive, active);
+  }
+
+  /**
+   * Like {@link #acquire()}, but gives up after {@code timeout} milliseconds, so the caller can
+   * check whether it still needs the connection.
+   *
+   * @return whether a connection was acquired.
+   */
+  public synchronized boolean tryAcquire(long timeout) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    while (active >= getLimit()) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) return false;
+      wait(remaining);
+    }
+    ++active;
+    windowActive = Math.max(windowActive, active);
+    return true;
+  }
+
+  public synchronized void release() {
+    --active;
+    notifyAll();
+  }
+
+  public synchronized void onBytes(long bytes) {
+    windowBytes += bytes;
+    long now = clock.getAsLong();
+    long elapsed = now - windowStart;
+    if (elapsed < WINDOW) return;
+
+    double perConnection = (double) windowBytes / elapsed / Math.max(1, windowActive);
+    if (lastPerConnection > 0 && perConnection < lastPerConnection * SATURATION) {
+      decrease(ERROR_DECREASE, now);
+    } else if (now - lastDecrease >= WINDOW && limit < max) {
+      limit = Math.min(max, limit + 1);
+      decision = "growing";
+      notifyAll();
+    } else {
+      decision = "";
+    }
+    lastPerConnection = perConnection;
+    windowStart = now;
+    windowBytes = 0;
+    windowActive = active;
+  }
+
+  /**
+   * Reports a failed request.
+   *
+   * @param throttled whether the server explicitly asked to slow down (429/503).
+   */
+  public synchronized void onError(boolean throttled) {
+    decrease(throttled ? THROTTLE_DECREASE : ERROR_DECREASE, clock.getAsLong());
+  }
+
+  private void decrease(double factor, long now) {
+    // failures of connections opened under the old limit count once
+    if (now - lastDecrease < WINDOW) return;
+    limit = Math.max(min, limit * factor);
+    lastDecrease = now;
+    lastPerConnection = 0;
+    decision = "backing off";
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /** A short summary of the current limit and the last decision, shown in the progress message. */
+  public synchronized String describe() {
+    return String.format(
+        Locale.US,
+        "%d connections%s",
+        getLimit(),
+        decision.isEmpty() ? "" : ", " + decision);
+  }
+}
@@ -22,19 +22,27 @@ import com.hhst.youtubelite.MainActivity;
 import com.hhst.youtubelite.R;
 import com.hhst.youtubelite.common.VideoDetails;
 import com.hhst.youtubelite.common.YoutubeExtractor;
+import com.hhst.youtubelite.extension.Constant;
+import com.hhst.youtubelite.extension.ExtensionManager;
 import com.squareup.picasso.Picasso;
 import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import org.schabi.newpipe.extractor.stream.AudioStream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
 
 public class DownloadDialog {
+  // more would only split the bandwidth further, see BandwidthGovernor
+  private static final int MAX_CONCURRENT_DOWNLOADS = 10;
+
   private final Context context;
 
   private final String url;
@@ -106,6 +114,11 @@ public class DownloadDialog {
             .setTitle(context.getString(R.string.download))
             .setView(dialogView)
             .setCancelable(true)
+            // the whole playlist or channel of this video, with one quality for all
+            .setNeutralButton(
+                R.string.batch_download,
+                (dialogInterface, which) ->
+                    new BatchDownloadDialog(context).showSources(url, details))
             .create();
 
     dialog.setOnDismissListener(dialogInterface -> executor.shutdownNow());
@@ -114,6 +127,9 @@ public class DownloadDialog {
     EditText editText = dialogView.findViewById(R.id.download_edit_text);
     Button videoButton = dialogView.findViewById(R.id.button_video);
     Button thumbnailButton = dialogView.findViewById(R.id.button_thumbnail);
+    Button clipButton = dialogView.findViewById(R.id.button_clip);
+    Button sponsorsButton = dialogView.findViewById(R.id.button_sponsors);
+    Button settingsButton = dialogView.findViewById(R.id.button_settings);
     final Button audioButton = dialogView.findViewById(R.id.button_audio);
     final Button cancelButton = dialogView.findViewById(R.id.button_cancel);
     final Button downloadButton = dialogView.findViewById(R.id.button_download);
@@ -137,11 +153,18 @@ public class DownloadDialog {
     final AtomicBoolean isThumbnailSelected = new AtomicBoolean(false);
     final AtomicBoolean isAudioSelected = new AtomicBoolean(false);
     final AtomicReference<VideoStream> selectedVideoStream = new AtomicReference<>(null);
+    final AtomicReference<Clip> selectedClip = new AtomicReference<>(null);
+    final DownloadSettings settings = new DownloadSettings();
+    final AtomicBoolean isCutSponsors = new AtomicBoolean(settings.isCutSponsors());
+    // bytes per second, 0 for no cap of its own
+    final AtomicLong taskSpeedLimit = new AtomicLong();
 
     // set button default background color
     videoButton.setBackgroundColor(context.getColor(android.R.color.darker_gray));
     thumbnailButton.setBackgroundColor(context.getColor(android.R.color.darker_gray));
     audioButton.setBackgroundColor(context.getColor(android.R.color.darker_gray));
+    clipButton.setBackgroundColor(context.getColor(android.R.color.darker_gray));
+    settingsButton.setBackgroundColor(context.getColor(android.R.color.darker_gray));
 
     // get theme color
     TypedValue value = new TypedValue();
@@ -150,9 +173,17 @@ public class DownloadDialog {
         .resolveAttribute(com.google.android.material.R.attr.colorPrimary, value, true);
     final int themeColor = value.data;
 
-    // on video button clicked
+    // on video button clicked, a live stream is recorded as it is served
     videoButton.setOnClickListener(
-        v -> showVideoQualityDialog(selectedVideoStream, isVideoSelected, videoButton, themeColor));
+        v -> {
+          if (details != null && details.isLive() && details.getHlsUrl() != null) {
+            isVideoSelected.set(!isVideoSelected.get());
+            videoButton.setBackgroundColor(
+                isVideoSelected.get() ? themeColor : context.getColor(android.R.color.darker_gray));
+            return;
+          }
+          showVideoQualityDialog(selectedVideoStream, isVideoSelected, videoButton, themeColor);
+        });
 
     // on thumbnail button clicked
     thumbnailButton.setOnClickListener(
@@ -172,7 +203,7 @@ public class DownloadDialog {
     // on audio-only button clicked
     audioButton.setOnClickListener(
         v -> {
-          if (details == null) {
+          if (details == null || details.isLive()) {
             return;
           }
           isAudioSelected.set(!isAudioSelected.get());
@@ -184,10 +215,36 @@ public class DownloadDialog {
           }
         });
 
+    sponsorsButton.setBackgroundColor(
+        isCutSponsors.get() ? themeColor : context.getColor(android.R.color.darker_gray));
+
+    // on cut sponsors button clicked, remembered for the next download
+    sponsorsButton.setOnClickListener(
+        v -> {
+          isCutSponsors.set(!isCutSponsors.get());
+          settings.setCutSponsors(isCutSponsors.get());
+          if (isCutSponsors.get()) {
+            sponsorsButton.setBackgroundColor(themeColor);
+          } else {
+            sponsorsButton.setBackgroundColor(context.getColor(android.R.color.darker_gray));
+          }
+        });
+
+    // on settings button clicked, they hold for every download but the speed limit of this one
+    settingsButton.setOnClickListener(v -> showSettingsDialog(settings, taskSpeedLimit));
+
+    // on clip button clicked
+    clipButton.setOnClickListener(
+        v -> {
+          if (details == null || details.isLive()) {
+            return;
+          }
+          showClipDialog(selectedClip, clipButton, themeColor);
+        });
+
     // on download button clicked
     downloadButton.setOnClickListener(
         v -> {
-          // fixed in live page
           if (details == null) {
             dialog.dismiss();
             return;
@@ -221,11 +278,27 @@ public class DownloadDialog {
             Intent downloadIntent = new Intent(context, DownloadService.class);
             DownloadTask downloadTask = new DownloadTask();
             downloadTask.setUrl(url);
-            downloadTask.setFileName(fileName);
+            Clip clip = selectedClip.get();
+            // the thumbnail keeps the name of the video, the clip is told apart from it
+            downloadTask.setFileName(
+                clip != null ? fileName + " (" + clip.describe() + ")" : fileName);
+            // nothing is marked in a stream that is still live
+            List<String> categories =
+                isCutSponsors.get() && !details.isLive() ? getSponsorCategories() : List.of();
+            if (!categories.isEmpty()) {
+              if (clip == null) clip = Clip.whole();
+              clip.setCategories(categories);
+            }
+            downloadTask.setClip(clip);
             downloadTask.setThumbnail(details.getThumbnail());
             downloadTask.setVideoStream(isVideoSelected.get() ? selectedVideoStream.get() : null);
             downloadTask.setAudioStream(details.getAudioStream());
             downloadTask.setIsAudio(isAudioSelected.get());
+            if (taskSpeedLimit.get() > 0) downloadTask.setSpeedLimit(taskSpeedLimit.get());
+            if (details.isLive() && details.getHlsUrl() != null) {
+              downloadTask.setHlsUrl(details.getHlsUrl());
+              downloadTask.setAudioStream(null);
+            }
 
             // Start download service
             context.startService(downloadIntent);
@@ -279,6 +352,126 @@ public class DownloadDialog {
     }
   }
 
+  // the categories the player skips, see skip_sponsors.js
+  private List<String> getSponsorCategories() {
+    ExtensionManager manager =
+        context instanceof MainActivity activity && activity.webview != null
+            ? activity.webview.extensionManager
+            : null;
+    List<String> categories = new ArrayList<>();
+    if (manager == null || manager.isEnabled(Constant.skipSponsor)) {
+      categories.add(SponsorBlock.SPONSOR);
+    }
+    if (manager == null || manager.isEnabled(Constant.skipSelfPromo)) {
+      categories.add(SponsorBlock.SELF_PROMO);
+    }
+    return categories;
+  }
+
+  private void showClipDialog(
+      AtomicReference<Clip> selectedClip, Button clipButton, int themeColor) {
+    View clipView = View.inflate(context, R.layout.clip_selector, null);
+    EditText startText = clipView.findViewById(R.id.clip_start);
+    EditText endText = clipView.findViewById(R.id.clip_end);
+    Clip clip = selectedClip.get();
+    long duration = details.getDuration() != null ? details.getDuration() * 1000 : 0;
+    startText.setText(Clip.formatTime(clip != null ? clip.getStart() : 0));
+    endText.setText(Clip.formatTime(clip != null ? clip.getEnd() : duration));
+
+    AlertDialog clipDialog =
+        new MaterialAlertDialogBuilder(context)
+            .setTitle(R.string.clip)
+            .setView(clipView)
+            .setPositiveButton(R.string.confirm, null)
+            .setNegativeButton(R.string.cancel, null)
+            .setNeutralButton(
+                R.string.clear,
+                (dialogInterface, which) -> {
+                  selectedClip.set(null);
+                  clipButton.setBackgroundColor(context.getColor(android.R.color.darker_gray));
+                })
+            .create();
+    clipDialog.show();
+    // checked before closing, so a typo does not lose what was entered
+    clipDialog
+        .getButton(AlertDialog.BUTTON_POSITIVE)
+        .setOnClickListener(
+            v -> {
+              long start = Clip.parseTime(startText.getText().toString());
+              long end = Clip.parseTime(endText.getText().toString());
+              if (start < 0 || end <= start || (duration > 0 && start >= duration)) {
+                Toast.makeText(context, R.string.invalid_clip, Toast.LENGTH_SHORT).show();
+                return;
+              }
+              selectedClip.set(new Clip(start, end));
+              clipButton.setBackgroundColor(themeColor);
+              clipDialog.dismiss();
+            });
+  }
+
+  private void showSettingsDialog(DownloadSettings settings, AtomicLong taskSpeedLimit) {
+    View settingsView = View.inflate(context, R.layout.download_settings, null);
+    EditText concurrentText = settingsView.findViewById(R.id.max_concurrent_downloads);
+    EditText globalText = settingsView.findViewById(R.id.global_speed_limit);
+    EditText playbackText = settingsView.findViewById(R.id.playback_speed_limit);
+    EditText taskText = settingsView.findViewById(R.id.task_speed_limit);
+    concurrentText.setText(String.valueOf(settings.getMaxConcurrentDownloads()));
+    globalText.setText(String.valueOf(settings.getGlobalSpeedLimit() / 1024));
+    playbackText.setText(String.valueOf(settings.getPlaybackSpeedLimit() / 1024));
+    taskText.setText(String.valueOf(taskSpeedLimit.get() / 1024));
+
+    AlertDialog settingsDialog =
+        new MaterialAlertDialogBuilder(context)
+            .setTitle(R.string.download_settings)
+            .setView(settingsView)
+            .setPositiveButton(R.string.confirm, null)
+            .setNegativeButton(R.string.cancel, null)
+            .create();
+    settingsDialog.show();
+    // checked before closing, so a typo does not lose what was entered
+    settingsDialog
+        .getButton(AlertDialog.BUTTON_POSITIVE)
+        .setOnClickListener(
+            v -> {
+              int concurrent = parseNumber(concurrentText);
+              if (concurrent < 1 || concurrent > MAX_CONCURRENT_DOWNLOADS) {
+                Toast.makeText(
+                        context, R.string.invalid_max_concurrent_downloads, Toast.LENGTH_SHORT)
+                    .show();
+                return;
+              }
+              int global = parseNumber(globalText);
+              int playback = parseNumber(playbackText);
+              int task = parseNumber(taskText);
+              if (global < 0 || playback < 0 || task < 0) {
+                Toast.makeText(context, R.string.invalid_speed_limit, Toast.LENGTH_SHORT).show();
+                return;
+              }
+              // the limits go straight into the BandwidthGovernor
+              settings.setGlobalSpeedLimit(global * 1024L);
+              settings.setPlaybackSpeedLimit(playback * 1024L);
+              taskSpeedLimit.set(task * 1024L);
+              // a running service starts or holds back tasks right away
+              DownloadService service =
+                  context instanceof MainActivity activity ? activity.getDownloadService() : null;
+              if (service != null) {
+                service.setMaxConcurrentDownloads(concurrent);
+              } else {
+                settings.setMaxConcurrentDownloads(concurrent);
+              }
+              settingsDialog.dismiss();
+            });
+  }
+
+  // -1 for anything but a whole number
+  private static int parseNumber(EditText text) {
+    try {
+      return Integer.parseInt(text.getText().toString().trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   private void showVideoQualityDialog(
       AtomicReference<VideoStream> selectedVideoStream,
       AtomicBoolean isVideoSelected,
@@ -376,7 +569,7 @@ public class DownloadDialog {
     qualityDialog.show();
   }
 
-  private String sanitizeFileName(String fileName) {
+  static String sanitizeFileName(String fileName) {
     // Remove invalid characters for file names
     return fileName.replaceAll("[<>:\"/|?*]", "_");
   }
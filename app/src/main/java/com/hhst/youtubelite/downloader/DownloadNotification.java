@@ -6,48 +6,71 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.FileProvider;
 import androidx.core.graphics.drawable.IconCompat;
 import com.hhst.youtubelite.R;
 import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The notification of one download task. Progress is posted at most once a second and only when
+ * what it shows changes, since the system drops updates from apps that post faster. While several
+ * tasks run, their notifications are grouped under a summary with the combined speed. A task that
+ * ended or is paused leaves the group, since the system removes every child along with the
+ * summary.
+ */
 public class DownloadNotification {
 
   private static final String CHANNEL_ID = "download_channel";
+  private static final String GROUP_KEY = "downloads";
+  // task ids start at 1
+  private static final int SUMMARY_ID = 0;
+  private static final long UPDATE_INTERVAL_MS = 1000;
+  // the speed of every task in the group, the summary shows their sum
+  private static final Map<Integer, Long> speeds = new ConcurrentHashMap<>();
+  // guarded by the class
+  private static boolean channelCreated;
+  private static int summaryCount;
+  private static boolean summaryShown;
+  private static long lastSummaryUpdate;
+
   final Context context;
   private final NotificationManager notificationManager;
   private final int notificationId;
   private NotificationCompat.Builder builder;
+  // the rest is guarded by this
+  private long lastUpdate;
+  private int lastProgress = -1;
+  // the sub text without speed and ETA
+  private String lastShown;
+  private boolean lastStalled;
+  private long smoothedSpeed;
+  // progress arriving after the task ended must not bring the bar back
+  private boolean ended;
 
   public DownloadNotification(Context context, int notificationId) {
     this.context = context;
     this.notificationId = notificationId;
     this.notificationManager =
         (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    createChannel(notificationManager);
+  }
 
+  private static synchronized void createChannel(NotificationManager notificationManager) {
+    if (channelCreated) return;
     NotificationChannel channel =
         new NotificationChannel(
             CHANNEL_ID, "Download Channel", NotificationManager.IMPORTANCE_HIGH);
     channel.setDescription("Channel for download notifications");
     notificationManager.createNotificationChannel(channel);
+    channelCreated = true;
   }
 
-  public Notification showNotification(String content, int progress) {
-    Intent cancelIntent = new Intent(context, DownloadService.class);
-    cancelIntent.setAction("CANCEL_DOWNLOAD");
-    cancelIntent.putExtra("taskId", notificationId);
-    PendingIntent cancelPendingIntent =
-        PendingIntent.getService(
-            context, notificationId, cancelIntent, PendingIntent.FLAG_IMMUTABLE);
-
-    NotificationCompat.Action cancelAction =
-        new NotificationCompat.Action.Builder(
-                IconCompat.createWithResource(context, R.drawable.ic_cancel),
-                context.getString(R.string.cancel),
-                cancelPendingIntent)
-            .build();
-
+  public synchronized Notification showNotification(String content, int progress) {
     builder =
         new NotificationCompat.Builder(context, CHANNEL_ID)
             .setContentTitle(context.getString(R.string.downloading))
@@ -57,22 +80,62 @@ public class DownloadNotification {
             .setPriority(NotificationCompat.PRIORITY_HIGH)
             .setOnlyAlertOnce(true)
             .setOngoing(true)
-            .addAction(cancelAction)
+            .setGroup(GROUP_KEY)
+            .addAction(serviceAction("PAUSE_DOWNLOAD", R.drawable.ic_pause, R.string.action_pause))
+            .addAction(serviceAction("CANCEL_DOWNLOAD", R.drawable.ic_cancel, R.string.cancel))
             .setProgress(100, progress, false);
 
+    ended = false;
+    lastProgress = -1;
+    lastShown = null;
     var notification = builder.build();
     notificationManager.notify(notificationId, notification);
+    speeds.put(notificationId, 0L);
+    updateSummary(true);
     return notification;
   }
 
-  public void updateProgress(int progress, String showing) {
-    if (builder != null) {
-      builder.setProgress(100, progress, false).setSubText(showing);
-      notificationManager.notify(notificationId, builder.build());
+  /**
+   * @param total the size in bytes, or a non-positive value while it is still unknown, which shows
+   *     an indeterminate bar.
+   */
+  public synchronized void updateProgress(
+      long downloaded, long total, long speed, String showing) {
+    if (builder == null || ended) return;
+    // the engines report bursty speeds, the ETA would jump around without smoothing
+    smoothedSpeed = smoothedSpeed > 0 ? (smoothedSpeed * 7 + speed * 3) / 10 : speed;
+    // progress racing a pause must not count the task in the summary again
+    speeds.replace(notificationId, speed);
+    long now = SystemClock.elapsedRealtime();
+    if (now - lastUpdate < UPDATE_INTERVAL_MS) return;
+
+    // long arithmetic, downloaded * 100 overflows an int from about 21 MB on
+    int progress = total > 0 ? (int) Math.min(100, downloaded * 100 / total) : 0;
+    String sizes =
+        total > 0
+            ? DownloadDialog.formatSize(downloaded) + " / " + DownloadDialog.formatSize(total)
+            : DownloadDialog.formatSize(downloaded);
+    // speed and ETA differ on nearly every tick, so only the rest decides whether to post and
+    // they are refreshed along with it; a stall still shows, as the speed drops out
+    String shown = showing != null ? showing + " | " + sizes : sizes;
+    boolean stalled = speed <= 0;
+    if (progress == lastProgress && stalled == lastStalled && shown.equals(lastShown)) return;
+    lastUpdate = now;
+    lastProgress = progress;
+    lastShown = shown;
+    lastStalled = stalled;
+    if (speed > 0) sizes += ", " + DownloadDialog.formatSize(speed) + "/s";
+    if (total > downloaded && smoothedSpeed > 0) {
+      String eta = DateUtils.formatElapsedTime((total - downloaded) / smoothedSpeed);
+      sizes += ", " + context.getString(R.string.time_left, eta);
     }
+    String subText = showing != null ? showing + " | " + sizes : sizes;
+    builder.setProgress(100, progress, total <= 0).setSubText(subText);
+    notificationManager.notify(notificationId, builder.build());
+    updateSummary(false);
   }
 
-  public void completeDownload(String content, File file, String mimeType) {
+  public synchronized void completeDownload(String content, File file, String mimeType) {
     // refs:
     // https://stackoverflow.com/questions/38200282/android-os-fileuriexposedexception-file-storage-emulated-0-test-txt-exposed
     Intent intent = new Intent(Intent.ACTION_VIEW);
@@ -88,6 +151,8 @@ public class DownloadNotification {
     Intent deleteIntent = new Intent(context, DownloadService.class);
     deleteIntent.setAction("DELETE_DOWNLOAD");
     deleteIntent.putExtra("taskId", notificationId);
+    // the finished task is gone from the service by the time this is tapped
+    deleteIntent.putExtra("output", file.getPath());
     PendingIntent deletePendingIntent =
         PendingIntent.getService(
             context, notificationId, deleteIntent, PendingIntent.FLAG_IMMUTABLE);
@@ -102,6 +167,7 @@ public class DownloadNotification {
     if (builder != null) {
       builder
           .setContentTitle(context.getString(R.string.download_complete))
+          .setGroup(null)
           .setOngoing(false)
           .setContentText(content)
           .setSubText(null)
@@ -113,37 +179,144 @@ public class DownloadNotification {
           .setProgress(100, 100, false);
       notificationManager.notify(notificationId, builder.build());
     }
+    end();
   }
 
-  public void cancelDownload(String content) {
+  public synchronized void cancelDownload(String content) {
     if (builder != null) {
       builder
           .setContentTitle(context.getString(R.string.download_canceled))
+          .setGroup(null)
           .setSubText(content)
           .setOngoing(false)
           .clearActions()
           .setProgress(0, 0, false);
       notificationManager.notify(notificationId, builder.build());
     }
+    end();
+  }
+
+  /** Shows the task as paused. It leaves the group, whose summary only counts active tasks. */
+  public synchronized void pauseDownload(String content) {
+    if (builder != null) {
+      builder
+          .setGroup(null)
+          .setSubText(content)
+          .clearActions()
+          .addAction(serviceAction("RESUME_DOWNLOAD", R.drawable.ic_play, R.string.resume))
+          .addAction(serviceAction("CANCEL_DOWNLOAD", R.drawable.ic_cancel, R.string.cancel));
+      notificationManager.notify(notificationId, builder.build());
+      lastShown = content;
+      smoothedSpeed = 0;
+      speeds.remove(notificationId);
+      updateSummary(true);
+    }
   }
 
-  public void startMuxing(String content) {
+  /** Shows a resumed task as waiting for its turn, until it starts and shows its progress. */
+  public synchronized void resumeDownload(String content) {
+    if (builder != null && !ended) {
+      builder
+          .setGroup(GROUP_KEY)
+          .setSubText(content)
+          .clearActions()
+          .addAction(serviceAction("PAUSE_DOWNLOAD", R.drawable.ic_pause, R.string.action_pause))
+          .addAction(serviceAction("CANCEL_DOWNLOAD", R.drawable.ic_cancel, R.string.cancel));
+      notificationManager.notify(notificationId, builder.build());
+      lastShown = content;
+      speeds.put(notificationId, 0L);
+      updateSummary(true);
+    }
+  }
+
+  public synchronized void startMuxing(String content) {
     if (builder != null) {
+      // a merge runs to the end, it can only be cancelled
       builder
           .setContentTitle(context.getString(R.string.merging))
+          .clearActions()
+          .addAction(serviceAction("CANCEL_DOWNLOAD", R.drawable.ic_cancel, R.string.cancel))
           .setContentText(content)
           .setSubText(context.getString(R.string.merging_audio_video))
           .setStyle(new NotificationCompat.BigTextStyle().bigText(content))
           .setProgress(0, 0, true);
       notificationManager.notify(notificationId, builder.build());
+      // the muxing progress starts over on a fresh bar, with its own speed
+      lastProgress = -1;
+      smoothedSpeed = 0;
     }
   }
 
-  public void clearDownload() {
+  /** Shows how much of the merged file has been written, after {@link #startMuxing}. */
+  public void updateMuxing(long written, long total, long speed) {
+    updateProgress(written, total, speed, context.getString(R.string.merging_audio_video));
+  }
+
+  public synchronized void clearDownload() {
     notificationManager.cancel(notificationId);
+    end();
   }
 
   public void clearAll() {
     notificationManager.cancelAll();
   }
+
+  // an action handled by DownloadService.onStartCommand for this task
+  private NotificationCompat.Action serviceAction(String action, int icon, int title) {
+    Intent intent = new Intent(context, DownloadService.class);
+    intent.setAction(action);
+    intent.putExtra("taskId", notificationId);
+    // the actions of a task differ in their intent action, so they share the request code
+    PendingIntent pendingIntent =
+        PendingIntent.getService(context, notificationId, intent, PendingIntent.FLAG_IMMUTABLE);
+    return new NotificationCompat.Action.Builder(
+            IconCompat.createWithResource(context, icon), context.getString(title), pendingIntent)
+        .build();
+  }
+
+  private void end() {
+    ended = true;
+    speeds.remove(notificationId);
+    updateSummary(true);
+  }
+
+  /**
+   * Shows the summary of the group once more than one task is ongoing, and drops it when none is
+   * left in the group.
+   *
+   * @param force post even if the last summary is recent, for when the number of tasks changed.
+   */
+  private void updateSummary(boolean force) {
+    synchronized (DownloadNotification.class) {
+      int count = speeds.size();
+      long now = SystemClock.elapsedRealtime();
+      // a single task needs no summary, but one already shown stays while the group has children
+      if (count == 0 || count < 2 && !summaryShown) {
+        if (summaryShown) notificationManager.cancel(SUMMARY_ID);
+        summaryShown = false;
+        summaryCount = count;
+        return;
+      }
+      if (!force && count == summaryCount && now - lastSummaryUpdate < UPDATE_INTERVAL_MS) return;
+      long speed = 0;
+      for (long taskSpeed : speeds.values()) {
+        speed += taskSpeed;
+      }
+      String title = context.getString(R.string.active_downloads, count);
+      Notification summary =
+          new NotificationCompat.Builder(context, CHANNEL_ID)
+              .setContentTitle(title)
+              .setContentText(speed > 0 ? DownloadDialog.formatSize(speed) + "/s" : null)
+              .setSmallIcon(R.drawable.ic_notification_icon)
+              .setGroup(GROUP_KEY)
+              .setGroupSummary(true)
+              .setOnlyAlertOnce(true)
+              .setOngoing(true)
+              .build();
+      notificationManager.notify(SUMMARY_ID, summary);
+      summaryShown = true;
+      summaryCount = count;
+      lastSummaryUpdate = now;
+    }
+  }
 }
@@ -0,0 +1,88 @@
+package com.hhst.youtubelite.downloader;
+
+import android.os.Process;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stages a download passes through, each with its own bounded pool and thread priority:
+ * fetching, muxing, and finishing (renaming into place, media scanning, notifying). Muxing is CPU
+ * and IO heavy, so it runs one task at a time at background priority; a burst of downloads
+ * finishing together then queues up instead of running several merges at once and starving the UI
+ * thread. A stage whose queue is full blocks whoever feeds it until there is room.
+ */
+public final class DownloadPipeline {
+
+  private static final long KEEP_ALIVE_SECONDS = 30;
+  private static final int NETWORK_PRIORITY =
+      Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE;
+
+  private static final ExecutorService mux =
+      stage("mux", 1, 8, Process.THREAD_PRIORITY_BACKGROUND);
+  private static final ExecutorService finish =
+      stage("finish", 1, 32, Process.THREAD_PRIORITY_BACKGROUND);
+
+  private DownloadPipeline() {}
+
+  /** Runs merges, one at a time. */
+  static ExecutorService mux() {
+    return mux;
+  }
+
+  /** Hands finished files over: renames, media scans and completion callbacks. */
+  static ExecutorService finish() {
+    return finish;
+  }
+
+  /**
+   * A pool for starting downloads and other short network work, such as thumbnails. The caller
+   * owns it and shuts it down.
+   */
+  static ExecutorService newFetchStage() {
+    return stage("fetch", Runtime.getRuntime().availableProcessors(), 64, NETWORK_PRIORITY);
+  }
+
+  /** Threads for the segment transfers of the download engine. */
+  static ThreadFactory networkThreads() {
+    return threads("network", NETWORK_PRIORITY);
+  }
+
+  private static ExecutorService stage(String name, int threads, int capacity, int priority) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(capacity),
+            threads(name, priority),
+            (task, pool) -> {
+              // back pressure: wait for the stage to catch up rather than dropping work
+              if (pool.isShutdown()) throw new RejectedExecutionException(name + " is shut down");
+              try {
+                pool.getQueue().put(task);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+              }
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static ThreadFactory threads(String name, int priority) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable ->
+        new Thread(
+            () -> {
+              Process.setThreadPriority(priority);
+              runnable.run();
+            },
+            "download-" + name + "-" + count.incrementAndGet());
+  }
+}
@@ -0,0 +1,159 @@
+package com.hhst.youtubelite.downloader;
+
+import com.google.gson.Gson;
+import com.tencent.mmkv.MMKV;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which download tasks may use the network. Tasks wait in order of priority, then of when
+ * they were queued, and at most {@code maxRunning} of them run at once. A waiting task is just an
+ * entry here, it holds no threads or sockets. The order and the paused flags are persisted in MMKV,
+ * so the queue survives a restart.
+ */
+public class DownloadQueue {
+
+  /** For downloads the user started, they go ahead of batch jobs. */
+  public static final int PRIORITY_USER = 0;
+
+  /** For downloads started in bulk, e.g. by a playlist or a channel sync. */
+  public static final int PRIORITY_BATCH = 1;
+
+  private static final Gson gson = new Gson();
+  private static final Comparator<Entry> ORDER =
+      Comparator.comparingInt((Entry entry) -> entry.priority)
+          .thenComparingLong(entry -> entry.order);
+
+  private final MMKV store;
+  // guarded by this
+  private final Map<Integer, Entry> entries = new HashMap<>();
+  private final Set<Integer> running = new HashSet<>();
+  private int maxRunning;
+  private long nextOrder;
+
+  public DownloadQueue(String id, int maxRunning) {
+    store = MMKV.mmkvWithID(id);
+    this.maxRunning = Math.max(1, maxRunning);
+    String[] keys = store.allKeys();
+    if (keys == null) return;
+    for (String key : keys) {
+      Entry entry = gson.fromJson(store.decodeString(key, null), Entry.class);
+      if (entry == null) continue;
+      entries.put(Integer.parseInt(key), entry);
+      nextOrder = Math.max(nextOrder, entry.order + 1);
+    }
+  }
+
+  /** Queues a new task behind the others of its priority. */
+  public synchronized void add(int taskId, int priority) {
+    Entry entry = new Entry();
+    entry.priority = priority;
+    entry.order = nextOrder++;
+    put(taskId, entry);
+  }
+
+  /** Whether a restored task is known to the queue, tasks from before it existed are not. */
+  public synchronized boolean contains(int taskId) {
+    return entries.containsKey(taskId);
+  }
+
+  /** Drops entries whose tasks no longer exist. */
+  public synchronized void retain(Collection<Integer> taskIds) {
+    for (Integer taskId : new ArrayList<>(entries.keySet())) {
+      if (!taskIds.contains(taskId)) remove(taskId);
+    }
+  }
+
+  /** Forgets a task that finished, failed or was cancelled. */
+  public synchronized void remove(int taskId) {
+    entries.remove(taskId);
+    running.remove(taskId);
+    store.removeValueForKey(String.valueOf(taskId));
+    notifyAll();
+  }
+
+  /**
+   * Takes the tasks that may start now and counts them as running until they are {@link #release
+   * released}.
+   */
+  public synchronized List<Integer> poll() {
+    List<Integer> waiting = new ArrayList<>();
+    for (Map.Entry<Integer, Entry> entry : entries.entrySet()) {
+      if (!entry.getValue().paused && !running.contains(entry.getKey())) {
+        waiting.add(entry.getKey());
+      }
+    }
+    waiting.sort((a, b) -> ORDER.compare(entries.get(a), entries.get(b)));
+    List<Integer> started = new ArrayList<>();
+    for (Integer taskId : waiting) {
+      if (running.size() >= maxRunning) break;
+      running.add(taskId);
+      started.add(taskId);
+    }
+    if (!started.isEmpty()) notifyAll();
+    return started;
+  }
+
+  /**
+   * Blocks until fewer than {@code limit} tasks wait for a slot, for producers that would
+   * otherwise queue a long list at once.
+   */
+  public synchronized void awaitWaitingBelow(int limit) throws InterruptedException {
+    while (true) {
+      int waiting = 0;
+      for (Map.Entry<Integer, Entry> entry : entries.entrySet()) {
+        if (!entry.getValue().paused && !running.contains(entry.getKey())) ++waiting;
+      }
+      if (waiting < limit) return;
+      wait();
+    }
+  }
+
+  /** Frees the slot of a task that stopped using the network but stays queued, e.g. offline. */
+  public synchronized void release(int taskId) {
+    running.remove(taskId);
+  }
+
+  /** Holds a task back until {@link #resume}, freeing its slot if it was running. */
+  public synchronized void pause(int taskId) {
+    Entry entry = entries.get(taskId);
+    if (entry == null) return;
+    entry.paused = true;
+    running.remove(taskId);
+    put(taskId, entry);
+    notifyAll();
+  }
+
+  public synchronized void resume(int taskId) {
+    Entry entry = entries.get(taskId);
+    if (entry == null) return;
+    entry.paused = false;
+    put(taskId, entry);
+  }
+
+  public synchronized boolean isPaused(int taskId) {
+    Entry entry = entries.get(taskId);
+    return entry != null && entry.paused;
+  }
+
+  public synchronized void setMaxRunning(int maxRunning) {
+    this.maxRunning = Math.max(1, maxRunning);
+  }
+
+  private void put(int taskId, Entry entry) {
+    entries.put(taskId, entry);
+    store.encode(String.valueOf(taskId), gson.toJson(entry));
+  }
+
+  private static class Entry {
+    int priority;
+    long order;
+    boolean paused;
+  }
+}
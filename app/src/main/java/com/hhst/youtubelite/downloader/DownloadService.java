@@ -1,8 +1,11 @@
 package com.hhst.youtubelite.downloader;
 
+import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
 import android.media.MediaScannerConnection;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.os.Binder;
 import android.os.Environment;
 import android.os.Handler;
@@ -10,32 +13,85 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.hhst.youtubelite.R;
-import com.liulishuo.filedownloader.FileDownloader;
+import com.hhst.youtubelite.common.YoutubeExtractor;
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.InsufficientSpaceException;
+import com.tencent.mmkv.MMKV;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.FileUtils;
 
 public class DownloadService extends Service {
 
+  // the states in which a task holds transfers of the engine
+  private static final Set<DownloaderState> ENGINE_STATES =
+      EnumSet.of(DownloaderState.RUNNING, DownloaderState.DOWNLOADING, DownloaderState.Merging);
+  private static final Set<DownloaderState> PAUSABLE_STATES =
+      EnumSet.of(DownloaderState.QUEUED, DownloaderState.RUNNING, DownloaderState.DOWNLOADING);
+
   private final AtomicInteger taskIdCounter = new AtomicInteger(1);
+  // tasks that have not reached a terminal state, the service stays in the foreground while any do
+  private final AtomicInteger activeTasks = new AtomicInteger();
+  // whether a scheduleDownloads() run is queued on the executor
+  private final AtomicBoolean schedulePending = new AtomicBoolean(false);
   private ConcurrentHashMap<Integer, DownloadTask> download_tasks;
   private ExecutorService download_executor;
+  // runs one batch or channel sync at a time, each blocks while the queue is full
+  private ScheduledExecutorService batch_executor;
+  private ChannelSync channel_sync;
+  private DownloadTaskStore task_store;
+  private DownloadQueue queue;
+  private DownloadSettings settings;
+  private PartFileJanitor janitor;
+  private ConnectivityManager connectivityManager;
+  private ConnectivityManager.NetworkCallback networkCallback;
 
   @Override
   public void onCreate() {
     super.onCreate();
     download_tasks = new ConcurrentHashMap<>();
-    download_executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-    FileDownloader.setup(this);
-    FileDownloader.getImpl().setMaxNetworkThreadCount(4);
+    download_executor = DownloadPipeline.newFetchStage();
+    batch_executor = Executors.newSingleThreadScheduledExecutor();
+    MMKV.initialize(this);
+    task_store = new DownloadTaskStore("download_tasks");
+    settings = new DownloadSettings();
+    settings.apply();
+    queue = new DownloadQueue("download_queue", settings.getMaxConcurrentDownloads());
+    janitor = new PartFileJanitor(getOutputDirectory());
+    // its subscriptions live in MMKV, and a sync queues downloads, so it comes after both
+    channel_sync = new ChannelSync(this, "channel_sync");
+    // checks often, each channel is only fetched once per ChannelSync.SYNC_INTERVAL_MS
+    batch_executor.scheduleWithFixedDelay(this::syncChannels, 1, 60, TimeUnit.MINUTES);
+    connectivityManager = getSystemService(ConnectivityManager.class);
+    registerNetworkCallback();
+    restoreDownloads();
+    download_executor.execute(
+        () -> {
+          PartFileJanitor.cleanLegacyCache(getCacheDir());
+          cleanPartFiles();
+        });
+  }
+
+  private File getOutputDirectory() {
+    return new File(
+        Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
+        getString(R.string.app_name));
   }
 
   @Override
@@ -49,15 +105,16 @@ public class DownloadService extends Service {
     if ("CANCEL_DOWNLOAD".equals(action)) {
       cancelDownload(taskId);
     } else if ("DELETE_DOWNLOAD".equals(action)) {
-      deleteDownload(taskId);
+      String output = intent.getStringExtra("output");
+      deleteDownload(taskId, output != null ? new File(output) : null);
+    } else if ("PAUSE_DOWNLOAD".equals(action)) {
+      pauseDownload(taskId);
+    } else if ("RESUME_DOWNLOAD".equals(action)) {
+      resumeDownload(taskId);
     } else if ("DOWNLOAD_THUMBNAIL".equals(action)) {
       String url = intent.getStringExtra("thumbnail");
       String filename = intent.getStringExtra("filename");
-      File outputDir =
-          new File(
-              Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
-              getString(R.string.app_name));
-      File outputFile = new File(outputDir, filename + ".jpg");
+      File outputFile = new File(getOutputDirectory(), filename + ".jpg");
       downloadThumbnail(url, outputFile);
     }
     return super.onStartCommand(intent, flags, startId);
@@ -93,76 +150,277 @@ public class DownloadService extends Service {
   }
 
   public void initiateDownload(DownloadTask task) {
-    task.setState(DownloaderState.RUNNING);
+    initiateDownload(task, DownloadQueue.PRIORITY_USER);
+  }
+
+  /**
+   * Queues the video and audio-only tasks of a download request.
+   *
+   * @param priority one of the {@link DownloadQueue} priorities, e.g. lower for batch jobs.
+   */
+  public void initiateDownload(DownloadTask task, int priority) {
+    task.setState(DownloaderState.QUEUED);
 
     download_executor.submit(
         () -> {
           // Check and create output directory
-          File outputDir =
-              new File(
-                  Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
-                  getString(R.string.app_name));
+          File outputDir = getOutputDirectory();
           if (!outputDir.exists()) {
             boolean ignored = outputDir.mkdirs();
           }
+          if (task.getHlsUrl() != null) {
+            // a live stream is recorded as it is served, one transport stream with both tracks
+            DownloadTask recordTask = task.clone();
+            recordTask.setOutput(new File(outputDir, task.getFileName() + ".ts"));
+            recordTask.setIsAudio(false);
+            enqueueDownload(recordTask, priority);
+            return;
+          }
+          Clip clip = task.getClip();
+          if (clip != null && clip.getCategories() != null) {
+            String videoId = YoutubeExtractor.getVideoId(task.getUrl());
+            try {
+              if (videoId != null) {
+                clip.setCuts(SponsorBlock.getSegments(videoId, clip.getCategories()));
+              }
+            } catch (IOException e) {
+              // the download goes on as if no segments were known
+              Log.w(getString(R.string.sponsors_unavailable), e);
+              showToast(getString(R.string.sponsors_unavailable));
+            }
+          }
+          if (clip != null && clip.isWhole() && !clip.isCut()) {
+            // nothing to leave out, the streams can be shared with other downloads of the video
+            task.setClip(null);
+          } else if (clip != null) {
+            try {
+              // looks the clip up in the segment index of each stream, the tasks share the plan
+              clip.plan(task.getUrl(), task.getVideoStream(), task.getAudioStream());
+            } catch (Exception e) {
+              Log.e(getString(R.string.clip_unsupported), Log.getStackTraceString(e));
+              if (!clip.isWhole()) {
+                showToast(getString(R.string.clip_unsupported));
+                return;
+              }
+              // the sponsors stay in rather than failing the download
+              showToast(getString(R.string.sponsors_unavailable));
+              task.setClip(null);
+            }
+          }
           if (task.getVideoStream() != null) {
             DownloadTask videoTask = task.clone();
             videoTask.setFileName(
                 String.format("%s(%s)", task.getFileName(), task.getVideoStream().getResolution()));
             videoTask.setOutput(new File(outputDir, task.getFileName() + ".mp4"));
             videoTask.setIsAudio(false);
-            executeDownload(videoTask);
+            enqueueDownload(videoTask, priority);
           }
           if (task.getIsAudio()) {
             DownloadTask audioTask = task.clone();
             audioTask.setFileName(String.format("(audio only) %s", task.getFileName()));
             audioTask.setOutput(new File(outputDir, audioTask.getFileName() + ".m4a"));
             audioTask.setVideoStream(null);
-            executeDownload(audioTask);
+            enqueueDownload(audioTask, priority);
           }
         });
   }
 
-  private void executeDownload(DownloadTask task) {
+  private void enqueueDownload(DownloadTask task, int priority) {
     int taskId = taskIdCounter.getAndIncrement();
-
-    task.setState(DownloaderState.RUNNING);
+    task.setState(DownloaderState.QUEUED);
+    activeTasks.incrementAndGet();
     download_tasks.put(taskId, task);
+    task_store.save(taskId, task);
+    queue.add(taskId, priority);
+    scheduleDownloads();
+  }
+
+  /**
+   * Starts as many queued tasks as the concurrency limit allows. Starting a task touches the disk
+   * and may wait for a stream another task is stopping, so it runs on the executor rather than on
+   * the caller's thread, which often is the main thread; calls made while a run is still queued
+   * share it.
+   */
+  private void scheduleDownloads() {
+    if (download_executor.isShutdown() || !schedulePending.compareAndSet(false, true)) return;
+    try {
+      download_executor.execute(this::startQueuedDownloads);
+    } catch (RejectedExecutionException e) {
+      // the service is being destroyed
+      schedulePending.set(false);
+    }
+  }
+
+  private void startQueuedDownloads() {
+    // cleared first, so a slot freed while this run polls schedules another one
+    schedulePending.set(false);
+    if (!isNetworkAvailable()) return;
+    for (int taskId : queue.poll()) {
+      DownloadTask task = download_tasks.get(taskId);
+      if (task == null) {
+        queue.remove(taskId);
+        continue;
+      }
+      startDownload(taskId, task);
+    }
+  }
+
+  /** Frees the slot of a task that no longer uses the network and lets the next one start. */
+  private void onTaskLeftNetwork(int taskId) {
+    queue.release(taskId);
+    scheduleDownloads();
+  }
+
+  /** Holds a task back, stopping it if it runs; it keeps its place in the queue. */
+  public void pauseDownload(int taskId) {
+    DownloadTask task = download_tasks.get(taskId);
+    if (task == null || !task.transition(DownloaderState.PAUSED, PAUSABLE_STATES)) return;
+    queue.pause(taskId);
+    // a task that was still queued has no transfers, and no notification yet
+    YoutubeDownloader.pause("DownloadTask#" + taskId);
+    if (task.getNotification() != null) {
+      task.getNotification().pauseDownload(getString(R.string.download_paused));
+    }
+    scheduleDownloads();
+  }
 
-    DownloadNotification notification = new DownloadNotification(this, taskId);
-    task.setNotification(notification);
+  public void resumeDownload(int taskId) {
+    DownloadTask task = download_tasks.get(taskId);
+    if (task == null || !task.transition(DownloaderState.QUEUED)) return;
+    queue.resume(taskId);
+    // it may wait for a free slot before its notification shows progress again
+    if (task.getNotification() != null) {
+      task.getNotification().resumeDownload(getString(R.string.download_queued));
+    }
+    scheduleDownloads();
+  }
+
+  /**
+   * Downloads every video of a playlist or channel, see {@link BatchDownloader}. The videos queue
+   * behind the ones the user picked one by one.
+   */
+  public void downloadBatch(String url, BatchDownloader.Quality quality) {
+    batch_executor.execute(
+        () -> {
+          try {
+            int[] result = new BatchDownloader(this, url, quality).run();
+            showToast(getString(R.string.batch_queued, result[0], result[1]));
+          } catch (InterruptedException e) {
+            Log.i("BatchDownloader", "stopped " + url);
+          } catch (Exception e) {
+            Log.e(getString(R.string.failed_to_load_batch), Log.getStackTraceString(e));
+            showToast(getString(R.string.failed_to_load_batch));
+          }
+        });
+  }
+
+  /** Downloads the uploads a channel gets from now on, with one quality for all of them. */
+  public void subscribeChannel(String channelUrl, BatchDownloader.Quality quality) {
+    batch_executor.execute(
+        () -> {
+          try {
+            channel_sync.subscribe(channelUrl, quality);
+            showToast(getString(R.string.channel_subscribed));
+          } catch (Exception e) {
+            Log.e(getString(R.string.failed_to_load_batch), Log.getStackTraceString(e));
+            showToast(getString(R.string.failed_to_load_batch));
+          }
+        });
+  }
+
+  /** Stops downloading the uploads of a channel, the ones already queued go on. */
+  public void unsubscribeChannel(String channelId) {
+    channel_sync.unsubscribe(channelId);
+  }
+
+  /** The names of the channels kept in sync, by channel id. */
+  public Map<String, String> getSubscribedChannels() {
+    return channel_sync.getNames();
+  }
+
+  /** The id of the channel at {@code channelUrl} if it is kept in sync, otherwise null. */
+  public String findSubscribedChannel(String channelUrl) {
+    return channel_sync.findSubscription(channelUrl);
+  }
+
+  private void syncChannels() {
+    if (!isNetworkAvailable()) return;
+    try {
+      int queued = channel_sync.syncAll();
+      if (queued > 0) showToast(getString(R.string.channel_uploads_queued, queued));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      // a periodic task that throws is never run again
+      Log.e("ChannelSync", "sync failed", e);
+    }
+  }
+
+  /** Blocks while as many tasks wait in the queue as may run at once. */
+  void awaitQueueRoom() throws InterruptedException {
+    queue.awaitWaitingBelow(settings.getMaxConcurrentDownloads());
+  }
+
+  public void setMaxConcurrentDownloads(int count) {
+    settings.setMaxConcurrentDownloads(count);
+    queue.setMaxRunning(count);
+    scheduleDownloads();
+  }
+
+  /** Starts or resumes a task, the engine picks up any partial files from a previous attempt. */
+  private void startDownload(int taskId, DownloadTask task) {
+    if (!task.transition(DownloaderState.RUNNING)) {
+      // paused for the network, resumeDownloads() queues it again
+      queue.release(taskId);
+      return;
+    }
+    task_store.save(taskId, task);
+
+    if (task.getNotification() == null) {
+      task.setNotification(new DownloadNotification(this, taskId));
+    }
 
     String fileName = task.getFileName();
     // Show initial notification
     String initialContent =
-        task.getIsAudio()
-            ? getString(R.string.downloading_audio) + ": " + fileName
-            : getString(R.string.downloading_video) + ": " + fileName;
+        task.getHlsUrl() != null
+            ? getString(R.string.recording_live) + ": " + fileName
+            : task.getIsAudio()
+                ? getString(R.string.downloading_audio) + ": " + fileName
+                : getString(R.string.downloading_video) + ": " + fileName;
 
     startForeground(taskId, task.getNotification().showNotification(initialContent, 0));
 
+    if (!isNetworkAvailable()) {
+      // resumed by the network callback once a connection is back
+      task.transition(DownloaderState.PAUSED);
+      task.getNotification().pauseDownload(getString(R.string.waiting_for_network));
+      queue.release(taskId);
+      return;
+    }
+
     File output = task.getOutput();
     task.setOutput(output);
+    if (task.getSpeedLimit() != null) {
+      BandwidthGovernor.getInstance().setTaskLimit("DownloadTask#" + taskId, task.getSpeedLimit());
+    }
 
-    // Download using YoutubeDownloader
-    YoutubeDownloader.download(
-        "DownloadTask#" + taskId,
-        task.getVideoStream(),
-        task.getAudioStream(),
-        output,
+    ProgressCallback callback =
         new ProgressCallback() {
           @Override
-          public void onProgress(int progress, String message) {
-            if (task.getState() == DownloaderState.CANCELLED) return;
-
-            task.setState(DownloaderState.DOWNLOADING);
-            task.getNotification().updateProgress(progress, message);
+          public void onProgress(long downloaded, long total, long speed, String message) {
+            if (task.getState() == DownloaderState.Merging) {
+              task.getNotification().updateMuxing(downloaded, total, speed);
+              return;
+            }
+            // fails once the task is paused, cancelled or done
+            if (!task.transition(DownloaderState.DOWNLOADING)) return;
+            task.getNotification().updateProgress(downloaded, total, speed, message);
           }
 
           @Override
           public void onComplete(File file) {
-            if (task.getState() == DownloaderState.CANCELLED) return;
-            task.setState(DownloaderState.FINISHED);
+            if (!task.transition(DownloaderState.FINISHED)) return;
 
             showToast(
                 String.format(getString(R.string.download_finished), fileName, file.getPath()));
@@ -176,93 +434,204 @@ public class DownloadService extends Service {
                     String.format(getString(R.string.download_finished), fileName, file.getPath()),
                     file,
                     task.getIsAudio() ? "audio/*" : "video/*");
-
-            onTaskTerminated();
+            onTaskTerminated(taskId);
           }
 
           @Override
           public void onError(Exception error) {
-            if (task.getState() == DownloaderState.CANCELLED) return;
-            task.setState(DownloaderState.STOPPED);
+            if (!task.transition(DownloaderState.STOPPED)) return;
 
             Log.e(getString(R.string.failed_to_download), Log.getStackTraceString(error));
-            showToast(getString(R.string.failed_to_download));
-            task.getNotification().cancelDownload(getString(R.string.failed_to_download));
-
-            onTaskTerminated();
+            String message = getString(R.string.failed_to_download);
+            if (error instanceof InsufficientSpaceException) {
+              InsufficientSpaceException space = (InsufficientSpaceException) error;
+              message =
+                  getString(
+                      R.string.not_enough_space,
+                      DownloadDialog.formatSize(space.required - space.usable));
+            }
+            showToast(message);
+            task.getNotification().cancelDownload(message);
+            onTaskTerminated(taskId);
           }
 
           @Override
           public void onCancel() {
-            task.setState(DownloaderState.CANCELLED);
+            // a paused task stopped its transfers itself, that is not a cancel
+            if (!task.transition(DownloaderState.CANCELLED, ENGINE_STATES)) return;
 
             Log.e(getString(R.string.failed_to_download), "Download canceled by user");
             showToast(getString(R.string.download_canceled));
             task.getNotification().cancelDownload(getString(R.string.download_canceled));
-            onTaskTerminated();
+            onTaskTerminated(taskId);
           }
 
           @Override
           public void onMerge() {
-            if (task.getState() == DownloaderState.CANCELLED) return;
-            task.setState(DownloaderState.Merging);
+            if (!task.transition(DownloaderState.Merging)) return;
             task.getNotification().startMuxing(getString(R.string.merging_audio_video));
+            // merging needs no network, the next task can start downloading
+            onTaskLeftNetwork(taskId);
           }
-        },
+        };
+
+    // Download using YoutubeDownloader
+    if (task.getHlsUrl() != null) {
+      // pausing a recording ends it, see YoutubeDownloader.record()
+      YoutubeDownloader.record("DownloadTask#" + taskId, task.getHlsUrl(), output, callback, this);
+      return;
+    }
+    YoutubeDownloader.download(
+        "DownloadTask#" + taskId,
+        task.getUrl(),
+        task.getVideoStream(),
+        task.getAudioStream(),
+        task.getClip(),
+        output,
+        callback,
         this);
   }
 
   private void cancelDownload(int taskId) {
     DownloadTask task = download_tasks.get(taskId);
-    if (task != null) {
-      task.setState(DownloaderState.CANCELLED);
-      // Cancel download
-      YoutubeDownloader.cancel("DownloadTask#" + taskId);
+    if (task == null || !task.transition(DownloaderState.CANCELLED)) return;
+    // Cancel download
+    YoutubeDownloader.cancel("DownloadTask#" + taskId);
 
-      if (task.getNotification() != null) {
-        task.getNotification().cancelDownload(getString(R.string.download_canceled));
-      }
-      onTaskTerminated();
+    if (task.getNotification() != null) {
+      task.getNotification().cancelDownload(getString(R.string.download_canceled));
     }
+    onTaskTerminated(taskId);
   }
 
-  private void deleteDownload(int taskId) {
+  /** Deletes a finished download, whose task has usually been forgotten by now. */
+  private void deleteDownload(int taskId, File output) {
     DownloadTask task = download_tasks.get(taskId);
-    if (task != null) {
-      task.setState(DownloaderState.CANCELLED);
-
-      if (task.getOutput() != null && task.getOutput().exists()) {
-        try {
-          FileUtils.forceDelete(task.getOutput());
-          showToast(getString(R.string.file_deleted));
-        } catch (IOException e) {
-          Log.e(getString(R.string.failed_to_delete), Log.getStackTraceString(e));
-          showToast(getString(R.string.failed_to_delete));
-        }
-      }
-      if (task.getNotification() != null) {
-        task.getNotification().clearDownload();
+    // ids restart with the process, the id may belong to a new task by now
+    if (task != null && output != null && !output.equals(task.getOutput())) task = null;
+    if (task != null && task.transition(DownloaderState.CANCELLED)) {
+      YoutubeDownloader.cancel("DownloadTask#" + taskId);
+      onTaskTerminated(taskId);
+    }
+    if (output == null && task != null) output = task.getOutput();
+    if (output != null && output.exists()) {
+      try {
+        FileUtils.forceDelete(output);
+        showToast(getString(R.string.file_deleted));
+      } catch (IOException e) {
+        Log.e(getString(R.string.failed_to_delete), Log.getStackTraceString(e));
+        showToast(getString(R.string.failed_to_delete));
       }
+    }
+    getSystemService(NotificationManager.class).cancel(taskId);
+  }
+
+  private void registerNetworkCallback() {
+    networkCallback =
+        new ConnectivityManager.NetworkCallback() {
+          @Override
+          public void onAvailable(@NonNull Network network) {
+            download_executor.submit(DownloadService.this::resumeDownloads);
+          }
+
+          @Override
+          public void onLost(@NonNull Network network) {
+            if (!isNetworkAvailable()) {
+              pauseDownloads(getString(R.string.waiting_for_network));
+            }
+          }
+        };
+    connectivityManager.registerDefaultNetworkCallback(networkCallback);
+  }
+
+  private boolean isNetworkAvailable() {
+    return connectivityManager.getActiveNetwork() != null;
+  }
 
-      onTaskTerminated();
+  /** Requeues the tasks persisted by a previous process, e.g. after a crash, in their old order. */
+  private void restoreDownloads() {
+    Map<Integer, DownloadTask> tasks = task_store.loadAll();
+    queue.retain(tasks.keySet());
+    if (tasks.isEmpty()) return;
+    // keep the service alive on its own while the restored tasks run
+    startService(new Intent(this, DownloadService.class));
+    for (Map.Entry<Integer, DownloadTask> entry : tasks.entrySet()) {
+      int taskId = entry.getKey();
+      DownloadTask task = entry.getValue();
+      taskIdCounter.accumulateAndGet(taskId + 1, Math::max);
+      if (!queue.contains(taskId)) queue.add(taskId, DownloadQueue.PRIORITY_USER);
+      task.setState(queue.isPaused(taskId) ? DownloaderState.PAUSED : DownloaderState.QUEUED);
+      activeTasks.incrementAndGet();
+      download_tasks.put(taskId, task);
     }
+    scheduleDownloads();
   }
 
-  private synchronized void onTaskTerminated() {
-    boolean hasActiveTasks = false;
-    for (DownloadTask task : download_tasks.values()) {
-      DownloaderState state = task.getState();
-      if (state == DownloaderState.RUNNING
-          || state == DownloaderState.DOWNLOADING
-          || state == DownloaderState.Merging) {
-        hasActiveTasks = true;
-        break;
+  /** Stops running transfers but keeps their partial files, journals and persisted records. */
+  private void pauseDownloads(String reason) {
+    for (Map.Entry<Integer, DownloadTask> entry : download_tasks.entrySet()) {
+      DownloadTask task = entry.getValue();
+      // merges need no network and run on
+      if (task.transition(DownloaderState.PAUSED, ENGINE_STATES)) {
+        YoutubeDownloader.pause("DownloadTask#" + entry.getKey());
+        queue.release(entry.getKey());
+        if (task.getNotification() != null) {
+          task.getNotification().pauseDownload(reason);
+        }
       }
     }
+  }
+
+  // tasks paused by the user stay paused, the rest wait for their turn again
+  private void resumeDownloads() {
+    for (Map.Entry<Integer, DownloadTask> entry : download_tasks.entrySet()) {
+      if (!queue.isPaused(entry.getKey())) entry.getValue().transition(DownloaderState.QUEUED);
+    }
+    scheduleDownloads();
+  }
 
-    if (!hasActiveTasks) {
+  /**
+   * Forgets a task that reached a terminal state and lets the next one start. Only the caller that
+   * moved the task into that state gets here, so every task is counted off exactly once.
+   */
+  private void onTaskTerminated(int taskId) {
+    task_store.remove(taskId);
+    download_tasks.remove(taskId);
+    queue.remove(taskId);
+    BandwidthGovernor.getInstance().removeTask("DownloadTask#" + taskId);
+    if (activeTasks.decrementAndGet() == 0) {
       stopForeground(false);
     }
+    scheduleDownloads();
+    if (!download_executor.isShutdown()) download_executor.execute(this::cleanPartFiles);
+  }
+
+  /**
+   * Deletes the partial files no task owns and holds the rest to the quota, at the expense of
+   * paused tasks only; the others may be writing to theirs.
+   */
+  private void cleanPartFiles() {
+    Set<File> owned = new HashSet<>();
+    Set<File> evictable = new HashSet<>();
+    Set<File> busy = new HashSet<>();
+    for (DownloadTask task : download_tasks.values()) {
+      List<File> parts =
+          YoutubeDownloader.getPartFiles(
+              task.getUrl(),
+              task.getVideoStream(),
+              task.getAudioStream(),
+              task.getClip(),
+              task.getOutput());
+      owned.addAll(parts);
+      if (task.getState() == DownloaderState.PAUSED) {
+        evictable.addAll(parts);
+      } else {
+        busy.addAll(parts);
+      }
+    }
+    // a stream shared with a task that is not paused stays
+    evictable.removeAll(busy);
+    janitor.sweep(owned, evictable, settings.getPartFileQuota());
   }
 
   @Override
@@ -284,8 +653,15 @@ public class DownloadService extends Service {
     // Stop the foreground service and remove the notification
     stopForeground(true);
 
-    // Cancel all downloads
-    cancelAllDownloads();
+    if (networkCallback != null) {
+      connectivityManager.unregisterNetworkCallback(networkCallback);
+    }
+
+    // Stop all downloads, they resume from their journals on the next start
+    stopAllDownloads();
+
+    // stops a batch waiting for room in the queue, the videos it queued so far stay
+    batch_executor.shutdownNow();
 
     // Shutdown the executor service
     download_executor.shutdown();
@@ -298,25 +674,9 @@ public class DownloadService extends Service {
     }
   }
 
-  private void cancelAllDownloads() {
+  private void stopAllDownloads() {
     if (download_tasks != null) {
-      for (Integer taskId : download_tasks.keySet()) {
-        DownloadTask task = download_tasks.get(taskId);
-        if (task != null
-            && (task.getState() == DownloaderState.RUNNING
-                || task.getState() == DownloaderState.DOWNLOADING
-                || task.getState() == DownloaderState.Merging)) {
-
-          task.setState(DownloaderState.CANCELLED);
-
-          YoutubeDownloader.cancel("DownloadTask#" + taskId);
-
-          if (task.getNotification() != null) {
-            task.getNotification().cancelDownload(getString(R.string.download_canceled));
-          }
-        }
-      }
-
+      pauseDownloads(getString(R.string.download_paused));
       download_tasks.clear();
     }
   }
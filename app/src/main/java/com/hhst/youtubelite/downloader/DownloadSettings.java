@@ -0,0 +1,87 @@
+package com.hhst.youtubelite.downloader;
+
+import com.tencent.mmkv.MMKV;
+
+/** Download preferences persisted in MMKV. Speed limits are in bytes per second, 0 = unlimited. */
+public class DownloadSettings {
+
+  private static final String GLOBAL_SPEED_LIMIT = "global_speed_limit";
+  private static final String PLAYBACK_SPEED_LIMIT = "playback_speed_limit";
+  // leave the player enough headroom for 1080p while a video is playing
+  private static final long DEFAULT_PLAYBACK_SPEED_LIMIT = 512 * 1024;
+  private static final String MUX_WHILE_DOWNLOADING = "mux_while_downloading";
+  private static final String MAX_CONCURRENT_DOWNLOADS = "max_concurrent_downloads";
+  private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+  private static final String PART_FILE_QUOTA = "part_file_quota";
+  private static final long DEFAULT_PART_FILE_QUOTA = 2L * 1024 * 1024 * 1024;
+  private static final String CUT_SPONSORS = "cut_sponsors";
+
+  private final MMKV store = MMKV.mmkvWithID("download_settings");
+
+  public long getGlobalSpeedLimit() {
+    return store.decodeLong(GLOBAL_SPEED_LIMIT, 0);
+  }
+
+  public void setGlobalSpeedLimit(long bytesPerSecond) {
+    store.encode(GLOBAL_SPEED_LIMIT, bytesPerSecond);
+    BandwidthGovernor.getInstance().setGlobalLimit(bytesPerSecond);
+  }
+
+  public long getPlaybackSpeedLimit() {
+    return store.decodeLong(PLAYBACK_SPEED_LIMIT, DEFAULT_PLAYBACK_SPEED_LIMIT);
+  }
+
+  public void setPlaybackSpeedLimit(long bytesPerSecond) {
+    store.encode(PLAYBACK_SPEED_LIMIT, bytesPerSecond);
+    BandwidthGovernor.getInstance().setPlaybackLimit(bytesPerSecond);
+  }
+
+  /**
+   * Whether video and audio are muxed into a fragmented MP4 as they arrive, so the output plays
+   * during the download and needs no merge afterwards.
+   */
+  public boolean isMuxWhileDownloading() {
+    return store.decodeBool(MUX_WHILE_DOWNLOADING, true);
+  }
+
+  public void setMuxWhileDownloading(boolean enabled) {
+    store.encode(MUX_WHILE_DOWNLOADING, enabled);
+  }
+
+  /** How many tasks download at once, the others wait in the {@link DownloadQueue}. */
+  public int getMaxConcurrentDownloads() {
+    return store.decodeInt(MAX_CONCURRENT_DOWNLOADS, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+  }
+
+  public void setMaxConcurrentDownloads(int count) {
+    store.encode(MAX_CONCURRENT_DOWNLOADS, count);
+  }
+
+  /**
+   * How many bytes the partial files of unfinished downloads may take, 0 for no limit. Beyond it
+   * the {@link PartFileJanitor} deletes the oldest parts of paused tasks.
+   */
+  public long getPartFileQuota() {
+    return store.decodeLong(PART_FILE_QUOTA, DEFAULT_PART_FILE_QUOTA);
+  }
+
+  public void setPartFileQuota(long bytes) {
+    store.encode(PART_FILE_QUOTA, bytes);
+  }
+
+  /** Whether downloads leave out the segments the player skips, see {@link SponsorBlock}. */
+  public boolean isCutSponsors() {
+    return store.decodeBool(CUT_SPONSORS, false);
+  }
+
+  public void setCutSponsors(boolean enabled) {
+    store.encode(CUT_SPONSORS, enabled);
+  }
+
+  /** Pushes the persisted limits into the shared {@link BandwidthGovernor}. */
+  public void apply() {
+    BandwidthGovernor governor = BandwidthGovernor.getInstance();
+    governor.setGlobalLimit(getGlobalSpeedLimit());
+    governor.setPlaybackLimit(getPlaybackSpeedLimit());
+  }
+}
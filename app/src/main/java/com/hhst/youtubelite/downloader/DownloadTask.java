@@ -2,6 +2,8 @@ package com.hhst.youtubelite.downloader;
 
 import androidx.annotation.NonNull;
 import java.io.File;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -18,9 +20,39 @@ public class DownloadTask implements Cloneable {
   private VideoStream videoStream;
   private AudioStream audioStream;
   private Boolean isAudio;
-  private DownloaderState state;
+  // only moved through transition() once the task is queued
+  private volatile DownloaderState state;
   private File output;
-  private DownloadNotification notification;
+  // bytes per second, null or 0 for no per-task cap
+  private Long speedLimit;
+  // only this time range of the video, null for all of it
+  private Clip clip;
+  // the HLS playlist of a live stream, recorded instead of the streams
+  private String hlsUrl;
+  private transient DownloadNotification notification;
+
+  private static final AtomicReferenceFieldUpdater<DownloadTask, DownloaderState> STATE =
+      AtomicReferenceFieldUpdater.newUpdater(DownloadTask.class, DownloaderState.class, "state");
+
+  /**
+   * Moves the task to {@code next} if the state machine allows it from the current state. Callbacks
+   * racing on different threads agree on a single winner.
+   *
+   * @return whether the task moved.
+   */
+  public boolean transition(DownloaderState next) {
+    return transition(next, null);
+  }
+
+  /** Like {@link #transition(DownloaderState)}, but only out of one of the {@code from} states. */
+  public boolean transition(DownloaderState next, Set<DownloaderState> from) {
+    while (true) {
+      DownloaderState current = state;
+      if (current == null || !current.canMoveTo(next)) return false;
+      if (from != null && !from.contains(current)) return false;
+      if (STATE.compareAndSet(this, current, next)) return true;
+    }
+  }
 
   @NonNull
   @Override
@@ -0,0 +1,67 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.tencent.mmkv.MMKV;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Persists unfinished download tasks in MMKV so they survive a process restart. */
+public class DownloadTaskStore {
+
+  private static final String TAG = "DownloadTaskStore";
+  private static final Gson gson =
+      new GsonBuilder().registerTypeAdapter(File.class, new FileAdapter().nullSafe()).create();
+  private final MMKV store;
+
+  public DownloadTaskStore(String id) {
+    store = MMKV.mmkvWithID(id);
+  }
+
+  public void save(int taskId, DownloadTask task) {
+    store.encode(String.valueOf(taskId), gson.toJson(task, DownloadTask.class));
+  }
+
+  public void remove(int taskId) {
+    store.removeValueForKey(String.valueOf(taskId));
+  }
+
+  /** Returns the persisted tasks ordered by task id, dropping entries that no longer parse. */
+  public Map<Integer, DownloadTask> loadAll() {
+    Map<Integer, DownloadTask> tasks = new TreeMap<>();
+    String[] keys = store.allKeys();
+    if (keys == null) return tasks;
+    for (String key : keys) {
+      try {
+        DownloadTask task = gson.fromJson(store.decodeString(key, null), DownloadTask.class);
+        if (task != null) {
+          tasks.put(Integer.parseInt(key), task);
+          continue;
+        }
+      } catch (Exception e) {
+        Log.w(TAG, "discard unreadable task " + key, e);
+      }
+      store.removeValueForKey(key);
+    }
+    return tasks;
+  }
+
+  // java.io.File keeps derived state in transient fields, so store the path only
+  private static class FileAdapter extends TypeAdapter<File> {
+    @Override
+    public void write(JsonWriter out, File file) throws IOException {
+      out.value(file.getPath());
+    }
+
+    @Override
+    public File read(JsonReader in) throws IOException {
+      return new File(in.nextString());
+    }
+  }
+}
@@ -1,10 +1,39 @@
 package com.hhst.youtubelite.downloader;
 
+/**
+ * The life cycle of a download task. A task moves between states only through {@link
+ * DownloadTask#transition}, which rejects the steps {@link #canMoveTo} does not allow. CANCELLED,
+ * STOPPED and FINISHED are terminal.
+ */
 public enum DownloaderState {
   RUNNING,
   CANCELLED,
   STOPPED,
   FINISHED,
   Merging,
-  DOWNLOADING
+  DOWNLOADING,
+  PAUSED,
+  QUEUED;
+
+  public boolean isTerminal() {
+    return this == CANCELLED || this == STOPPED || this == FINISHED;
+  }
+
+  public boolean canMoveTo(DownloaderState next) {
+    switch (this) {
+      case QUEUED:
+        return next == RUNNING || next == PAUSED || next == CANCELLED;
+      case RUNNING:
+      case DOWNLOADING:
+        // a resumed task whose streams are already complete skips DOWNLOADING
+        return next != QUEUED && next != RUNNING;
+      case Merging:
+        return next == FINISHED || next == STOPPED || next == CANCELLED;
+      case PAUSED:
+        // a pause can lose the race against the last bytes of a download
+        return next == QUEUED || next == CANCELLED || next == FINISHED;
+      default:
+        return false;
+    }
+  }
 }
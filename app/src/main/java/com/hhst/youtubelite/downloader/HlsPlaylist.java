@@ -0,0 +1,152 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.HttpStatusException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An HLS media playlist, the best variant when the URL is a master playlist. The playlist of a live
+ * stream only lists its latest segments, so it is reloaded for the next ones until it ends
+ * with {@code #EXT-X-ENDLIST}.
+ */
+class HlsPlaylist implements SegmentSource {
+
+  private static final String TAG = "HlsPlaylist";
+  private static final Pattern BANDWIDTH = Pattern.compile("[:,]BANDWIDTH=(\\d+)");
+  private static final Pattern URI = Pattern.compile("URI=\"([^\"]+)\"");
+  private static final int TIMEOUT = 15_000;
+
+  private final String url;
+  private String mediaUrl;
+  // the first sequence number not returned yet
+  private long next;
+  // whether next follows earlier segments, rather than wherever the live window starts
+  private boolean positioned;
+  private long missed;
+  private boolean initReturned;
+  private boolean ended;
+  private boolean grew = true;
+  // in milliseconds
+  private long targetDuration = 5000;
+
+  HlsPlaylist(String url) {
+    this.url = url;
+  }
+
+  @Override
+  public List<Segment> poll() throws IOException {
+    if (mediaUrl == null) mediaUrl = pickVariant(load(url));
+    long sequence = 0;
+    long first = -1;
+    List<Segment> segments = new ArrayList<>();
+    for (String line : load(mediaUrl)) {
+      line = line.trim();
+      if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+        sequence = Long.parseLong(value(line));
+      } else if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+        targetDuration = Math.round(Double.parseDouble(value(line)) * 1000);
+      } else if (line.startsWith("#EXT-X-KEY:") && !line.contains("METHOD=NONE")) {
+        throw new IOException("Encrypted HLS stream");
+      } else if (line.startsWith("#EXT-X-MAP:") && !initReturned) {
+        Matcher matcher = URI.matcher(line);
+        if (!matcher.find()) throw new IOException("EXT-X-MAP without URI");
+        segments.add(new Segment(-1, resolve(mediaUrl, matcher.group(1))));
+        initReturned = true;
+      } else if (line.equals("#EXT-X-ENDLIST")) {
+        ended = true;
+      } else if (!line.isEmpty() && !line.startsWith("#")) {
+        if (sequence >= next) {
+          if (first < 0) first = sequence;
+          segments.add(new Segment(sequence, resolve(mediaUrl, line)));
+        }
+        ++sequence;
+      }
+    }
+    if (positioned && first > next) {
+      missed += first - next;
+      Log.w(TAG, "segments " + next + " to " + (first - 1) + " left the playlist unfetched");
+    }
+    if (first >= 0) positioned = true;
+    if (!segments.isEmpty()) next = segments.get(segments.size() - 1).sequence + 1;
+    grew = !segments.isEmpty();
+    return segments;
+  }
+
+  @Override
+  public boolean isEnded() {
+    return ended;
+  }
+
+  // a playlist that did not change is reloaded after half the target duration
+  @Override
+  public long getPollInterval() {
+    return grew ? targetDuration : targetDuration / 2;
+  }
+
+  @Override
+  public void skipTo(long sequence) {
+    next = sequence;
+    positioned = true;
+    initReturned = true;
+  }
+
+  @Override
+  public long getMissed() {
+    return missed;
+  }
+
+  // the variant with the highest bandwidth
+  private String pickVariant(List<String> lines) throws IOException {
+    String best = null;
+    long bestBandwidth = -1;
+    for (int i = 0; i < lines.size(); ++i) {
+      String line = lines.get(i).trim();
+      if (!line.startsWith("#EXT-X-STREAM-INF:")) continue;
+      Matcher matcher = BANDWIDTH.matcher(line);
+      long bandwidth = matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+      String uri = null;
+      while (uri == null && ++i < lines.size()) {
+        String candidate = lines.get(i).trim();
+        if (!candidate.isEmpty() && !candidate.startsWith("#")) uri = candidate;
+      }
+      if (uri != null && bandwidth > bestBandwidth) {
+        best = uri;
+        bestBandwidth = bandwidth;
+      }
+    }
+    // not a master playlist, it lists the segments itself
+    return best != null ? resolve(url, best) : url;
+  }
+
+  private static List<String> load(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(TIMEOUT);
+    connection.setReadTimeout(TIMEOUT);
+    try {
+      int code = connection.getResponseCode();
+      if (code >= 400) throw new HttpStatusException(code, url);
+      try (InputStream in = connection.getInputStream()) {
+        return IOUtils.readLines(in, StandardCharsets.UTF_8);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static String value(String line) {
+    return line.substring(line.indexOf(':') + 1).trim();
+  }
+
+  private static String resolve(String base, String uri) throws IOException {
+    return new URL(new URL(base), uri).toString();
+  }
+}
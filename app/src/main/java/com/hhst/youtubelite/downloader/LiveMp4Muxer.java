@@ -0,0 +1,245 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import com.hhst.youtubelite.downloader.StreamingMp4Muxer.Fragment;
+import com.hhst.youtubelite.downloader.StreamingMp4Muxer.Track;
+import com.hhst.youtubelite.downloader.StreamingMp4Muxer.UnsupportedLayoutException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Muxes a fragmented video and audio MP4 while both are still downloading. Each fragment is
+ * appended to the output, interleaved by decode time, as soon as the downloader reports it
+ * completely written through {@link ProgressCallback#onAvailable}, so the output plays from the
+ * start of the download and is finished right after the last segment lands.
+ *
+ * <p>Inputs that turn out not to be fragmented MP4, such as WebM, make it give up; {@link #finish}
+ * then reports false and the task merges the completed files as before.
+ */
+class LiveMp4Muxer {
+
+  private static final String TAG = "LiveMp4Muxer";
+  // one thread for every task, appending fragments is cheap next to downloading them
+  private static final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+  private final File output;
+  private final Source[] sources;
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  // stops a copy in progress when the task is cancelled
+  private final MuxProgress progress = new MuxProgress();
+  // the rest is guarded by this
+  private FileChannel out;
+  private long position;
+  private long moovOffset;
+  private int sequence;
+  private boolean failed;
+  private boolean closed;
+
+  LiveMp4Muxer(File videoFile, File audioFile, File output) {
+    this.output = output;
+    sources = new Source[] {new Source(videoFile, "vide", 1), new Source(audioFile, "soun", 2)};
+    progress.start(null, 0);
+  }
+
+  /** Records that the first {@code bytes} of an input are on disk and muxes what they complete. */
+  void onAvailable(int input, long bytes) {
+    sources[input].available = Math.max(sources[input].available, bytes);
+    if (scheduled.compareAndSet(false, true)) {
+      worker.execute(
+          () -> {
+            scheduled.set(false);
+            synchronized (this) {
+              pump();
+            }
+          });
+    }
+  }
+
+  /**
+   * Muxes what is left once both inputs are complete and writes the final durations.
+   *
+   * @return whether the output is complete, false if the inputs still need a regular merge.
+   */
+  synchronized boolean finish() {
+    for (Source source : sources) {
+      source.available = source.file.length();
+      source.complete = true;
+    }
+    pump();
+    if (failed || closed) return false;
+    try {
+      if (out == null) throw new UnsupportedLayoutException("No moov box");
+      long duration = 0;
+      for (Source source : sources) {
+        source.track.setMediaDuration(source.end);
+        duration = Math.max(duration, source.track.duration);
+      }
+      // the moov keeps its size, so it is overwritten in place
+      StreamingMp4Muxer.write(out, moov(duration), moovOffset, progress);
+      out.truncate(position);
+      out.close();
+      closeSources();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+      return false;
+    }
+  }
+
+  /** Stops muxing and deletes the output, e.g. when the task is cancelled or paused. */
+  void abort() {
+    progress.cancel();
+    synchronized (this) {
+      closed = true;
+      IOUtils.closeQuietly(out);
+      closeSources();
+      FileUtils.deleteQuietly(output);
+    }
+  }
+
+  private void pump() {
+    if (failed || closed) return;
+    try {
+      for (Source source : sources) {
+        source.scan();
+      }
+      if (out == null) {
+        if (sources[0].track == null || sources[1].track == null) return;
+        out =
+            FileChannel.open(
+                output.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        position = StreamingMp4Muxer.write(out, StreamingMp4Muxer.ftyp("iso6"), 0, progress);
+        moovOffset = position;
+        position = StreamingMp4Muxer.write(out, moov(0), position, progress);
+      }
+      while (true) {
+        // a fragment may only go out once every unfinished input has one to compare it with
+        Source next = null;
+        for (Source source : sources) {
+          Fragment fragment = source.fragments.peek();
+          if (fragment == null) {
+            if (source.complete) continue;
+            return;
+          }
+          if (next == null
+              || fragment.isBefore(source.track, next.fragments.peek(), next.track)) {
+            next = source;
+          }
+        }
+        if (next == null) return;
+        Fragment fragment = next.fragments.poll();
+        position =
+            StreamingMp4Muxer.copyFragment(
+                next.channel, fragment, next.track, ++sequence, out, position, progress);
+      }
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private Mp4Box moov(long duration) {
+    return StreamingMp4Muxer.fragmentedMoov(List.of(sources[0].track, sources[1].track), duration);
+  }
+
+  private void fail(Exception e) {
+    if (!(e instanceof CancellationException)) {
+      Log.w(TAG, "falling back to merging " + output + " after the download", e);
+    }
+    failed = true;
+    IOUtils.closeQuietly(out);
+    closeSources();
+    FileUtils.deleteQuietly(output);
+  }
+
+  private void closeSources() {
+    for (Source source : sources) {
+      IOUtils.closeQuietly(source.channel);
+    }
+  }
+
+  /** One input, parsed box by box as far as it is available. */
+  private static class Source {
+    final File file;
+    final String handler;
+    final int trackId;
+    final Queue<Fragment> fragments = new ArrayDeque<>();
+    volatile long available;
+    volatile boolean complete;
+    FileChannel channel;
+    Track track;
+    // the next top-level box to look at
+    long offset;
+    // a moof whose media may not have been seen in full yet
+    Mp4Box.Header moof;
+    Mp4Box moofBox;
+    long moofEnd;
+    // where the last fragment ended, in the media timescale
+    long end;
+
+    Source(File file, String handler, int trackId) {
+      this.file = file;
+      this.handler = handler;
+      this.trackId = trackId;
+    }
+
+    void scan() throws IOException {
+      long limit = available;
+      if (limit == 0) return;
+      if (channel == null) {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      }
+      while (true) {
+        Mp4Box.Header header = Mp4Box.readHeader(channel, offset, limit);
+        if (header == null || header.end() > limit) {
+          if (complete && offset < limit) {
+            throw new UnsupportedLayoutException("Truncated box at " + offset);
+          }
+          break;
+        }
+        if (offset == 0 && !header.type.equals("ftyp")) {
+          throw new UnsupportedLayoutException("Not an MP4 file");
+        }
+        if (header.type.equals("mdat")) {
+          if (moof != null) moofEnd = header.end();
+        } else {
+          // anything but media data ends the fragment before it
+          addFragment();
+          if (header.type.equals("moov")) {
+            track = new Track(Mp4Box.read(channel, header), handler, trackId);
+            if (!track.fragmented) throw new UnsupportedLayoutException("Not fragmented");
+          } else if (header.type.equals("moof")) {
+            if (track == null) throw new UnsupportedLayoutException("Fragment before moov");
+            moof = header;
+            moofBox = Mp4Box.read(channel, header);
+            moofEnd = header.end();
+          }
+        }
+        offset = header.end();
+      }
+      if (complete) addFragment();
+    }
+
+    private void addFragment() throws UnsupportedLayoutException {
+      if (moof == null) return;
+      Fragment fragment = track.fragment(moofBox, moof, moofEnd, end);
+      fragments.add(fragment);
+      end = fragment.decodeTime + fragment.duration;
+      moof = null;
+      moofBox = null;
+    }
+  }
+}
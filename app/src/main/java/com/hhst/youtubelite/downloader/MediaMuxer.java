@@ -10,9 +10,18 @@ public interface MediaMuxer {
    * @param videoFile The video file to be merged.
    * @param audioFile The audio file to be merged.
    * @param outputFile The output file where the merged content will be saved.
+   * @param callback Receives the bytes written so far through {@code onProgress}, may be null.
    */
-  void merge(File videoFile, File audioFile, File outputFile) throws IOException;
+  void merge(File videoFile, File audioFile, File outputFile, ProgressCallback callback)
+      throws IOException;
 
-  /** Cancels the ongoing merge operation. */
+  default void merge(File videoFile, File audioFile, File outputFile) throws IOException {
+    merge(videoFile, audioFile, outputFile, null);
+  }
+
+  /**
+   * Cancels the ongoing merge operation. The merge stops at the next chunk and throws a {@link
+   * java.util.concurrent.CancellationException}, leaving the partial output to the caller.
+   */
   void cancel();
 }
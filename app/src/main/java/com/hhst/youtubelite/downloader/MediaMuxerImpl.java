@@ -14,8 +14,12 @@ import java.util.List;
 
 public class MediaMuxerImpl implements MediaMuxer {
 
+  private final MuxProgress progress = new MuxProgress();
+
   @Override
-  public void merge(File videoFile, File audioFile, File outputFile) throws IOException {
+  public void merge(File videoFile, File audioFile, File outputFile, ProgressCallback callback)
+      throws IOException {
+    progress.start(callback, videoFile.length() + audioFile.length());
 
     Movie video = MovieCreator.build(videoFile.getAbsolutePath());
     Movie audio = MovieCreator.build(audioFile.getAbsolutePath());
@@ -41,16 +45,23 @@ public class MediaMuxerImpl implements MediaMuxer {
     result.addTrack(videoTracks.get(0));
     result.addTrack(audioTracks.get(0));
 
+    progress.check();
     Container out = new DefaultMp4Builder().build(result);
     FileOutputStream fos = new FileOutputStream(outputFile);
     FileChannel fc = fos.getChannel();
-    out.writeContainer(fc);
-    fc.close();
-    fos.close();
+    try {
+      // mp4parser writes sample by sample, so the channel can report and stop it
+      out.writeContainer(new ProgressChannel(fc, progress));
+    } finally {
+      fc.close();
+      fos.close();
+    }
   }
 
   @Override
-  public void cancel() {}
+  public void cancel() {
+    progress.cancel();
+  }
 
   public static class EmptyTrackException extends RuntimeException {
     public EmptyTrackException() {
@@ -0,0 +1,225 @@
+package com.hhst.youtubelite.downloader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An ISO BMFF (MP4) box held in memory. Only the small metadata boxes such as moov and moof are
+ * ever parsed this way, media payloads are located with {@link #scan} and copied without being
+ * read into the heap.
+ */
+class Mp4Box {
+
+  // boxes that hold nothing but other boxes
+  private static final Set<String> CONTAINERS =
+      Set.of("moov", "trak", "mdia", "minf", "stbl", "edts", "dinf", "mvex", "moof", "traf");
+
+  final String type;
+  final List<Mp4Box> children = new ArrayList<>();
+  // the body of a leaf box, null for containers
+  ByteBuffer payload;
+
+  Mp4Box(String type, ByteBuffer payload) {
+    this.type = type;
+    this.payload = payload;
+  }
+
+  static Mp4Box container(String type, Mp4Box... children) {
+    Mp4Box box = new Mp4Box(type, null);
+    box.children.addAll(List.of(children));
+    return box;
+  }
+
+  /** Lists the top-level boxes of a file without reading their bodies. */
+  static List<Header> scan(FileChannel channel) throws IOException {
+    List<Header> headers = new ArrayList<>();
+    long size = channel.size();
+    for (long offset = 0; ; ) {
+      Header header = readHeader(channel, offset, size);
+      if (header == null) break;
+      // a download cut short leaves a truncated last box, which is not worth failing over
+      if (header.end() > size && !header.type.equals("mdat")) break;
+      headers.add(
+          new Header(header.type, offset, Math.min(header.size, size - offset), header.headerSize));
+      offset = header.end();
+    }
+    return headers;
+  }
+
+  /**
+   * Reads the header of the box at {@code offset}. A size of 0 means the box runs up to {@code
+   * limit}.
+   *
+   * @return the header, or null if the header itself does not fit below {@code limit}.
+   */
+  static Header readHeader(FileChannel channel, long offset, long limit) throws IOException {
+    if (offset + 8 > limit) return null;
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    buffer.limit((int) Math.min(16, limit - offset));
+    readFully(channel, buffer, offset);
+    buffer.flip();
+    long boxSize = buffer.getInt() & 0xFFFFFFFFL;
+    String type = readType(buffer);
+    int headerSize = 8;
+    if (boxSize == 1) {
+      if (buffer.remaining() < 8) return null;
+      boxSize = buffer.getLong();
+      headerSize = 16;
+    } else if (boxSize == 0) {
+      boxSize = limit - offset;
+    }
+    if (boxSize < headerSize) throw new IOException("Malformed box " + type + " at " + offset);
+    return new Header(type, offset, boxSize, headerSize);
+  }
+
+  /** Reads and parses a whole top-level box. */
+  static Mp4Box read(FileChannel channel, Header header) throws IOException {
+    if (header.size > Integer.MAX_VALUE) {
+      throw new IOException("Box " + header.type + " is too large to parse: " + header.size);
+    }
+    ByteBuffer body = ByteBuffer.allocate((int) (header.size - header.headerSize));
+    readFully(channel, body, header.offset + header.headerSize);
+    body.flip();
+    return parse(header.type, body);
+  }
+
+  private static Mp4Box parse(String type, ByteBuffer body) throws IOException {
+    if (!CONTAINERS.contains(type)) {
+      return new Mp4Box(type, body.slice());
+    }
+    Mp4Box box = new Mp4Box(type, null);
+    while (body.remaining() >= 8) {
+      int start = body.position();
+      long size = body.getInt() & 0xFFFFFFFFL;
+      String childType = readType(body);
+      int headerSize = 8;
+      if (size == 1) {
+        size = body.getLong();
+        headerSize = 16;
+      } else if (size == 0) {
+        size = body.limit() - start;
+      }
+      if (size < headerSize || start + size > body.limit()) {
+        throw new IOException("Malformed box " + childType + " in " + type);
+      }
+      ByteBuffer child = body.duplicate();
+      child.limit((int) (start + size));
+      child.position(start + headerSize);
+      box.children.add(parse(childType, child.slice()));
+      body.position((int) (start + size));
+    }
+    return box;
+  }
+
+  Mp4Box child(String type) {
+    for (Mp4Box child : children) {
+      if (child.type.equals(type)) return child;
+    }
+    return null;
+  }
+
+  List<Mp4Box> children(String type) {
+    List<Mp4Box> result = new ArrayList<>();
+    for (Mp4Box child : children) {
+      if (child.type.equals(type)) result.add(child);
+    }
+    return result;
+  }
+
+  /** Follows a path of box types such as {@code "mdia/minf/stbl"}, or returns null. */
+  Mp4Box find(String path) {
+    Mp4Box box = this;
+    for (String type : path.split("/")) {
+      box = box.child(type);
+      if (box == null) return null;
+    }
+    return box;
+  }
+
+  void replace(Mp4Box old, Mp4Box replacement) {
+    children.set(children.indexOf(old), replacement);
+  }
+
+  int version() {
+    return payload.get(0) & 0xFF;
+  }
+
+  int flags() {
+    return payload.getInt(0) & 0xFFFFFF;
+  }
+
+  long size() {
+    long body = 0;
+    if (payload != null) {
+      body = payload.limit();
+    } else {
+      for (Mp4Box child : children) {
+        body += child.size();
+      }
+    }
+    return body + (body + 8 > 0xFFFFFFFFL ? 16 : 8);
+  }
+
+  void write(ByteBuffer out) {
+    long size = size();
+    if (size > 0xFFFFFFFFL) {
+      out.putInt(1).put(type.getBytes(StandardCharsets.US_ASCII)).putLong(size);
+    } else {
+      out.putInt((int) size).put(type.getBytes(StandardCharsets.US_ASCII));
+    }
+    if (payload != null) {
+      // payloads are never read through their position, it stays at 0
+      out.put(payload.duplicate());
+    } else {
+      for (Mp4Box child : children) {
+        child.write(out);
+      }
+    }
+  }
+
+  ByteBuffer toBuffer() {
+    ByteBuffer buffer = ByteBuffer.allocate((int) size());
+    write(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static String readType(ByteBuffer buffer) {
+    byte[] type = new byte[4];
+    buffer.get(type);
+    return new String(type, StandardCharsets.US_ASCII);
+  }
+
+  static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) throw new EOFException();
+      position += read;
+    }
+  }
+
+  /** The location of a top-level box in a file. */
+  static class Header {
+    final String type;
+    final long offset;
+    final long size;
+    final int headerSize;
+
+    Header(String type, long offset, long size, int headerSize) {
+      this.type = type;
+      this.offset = offset;
+      this.size = size;
+      this.headerSize = headerSize;
+    }
+
+    long end() {
+      return offset + size;
+    }
+  }
+}
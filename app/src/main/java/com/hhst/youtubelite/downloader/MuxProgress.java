@@ -0,0 +1,48 @@
+package com.hhst.youtubelite.downloader;
+
+import java.util.concurrent.CancellationException;
+
+/** Counts the bytes a muxer has written, reports them, and carries the merge's cancellation. */
+class MuxProgress {
+
+  private static final long REPORT_INTERVAL = 500;
+
+  private ProgressCallback callback;
+  private long total;
+  private long written;
+  private long lastReport;
+  private long lastReportBytes;
+  private volatile boolean cancelled;
+
+  /**
+   * @param total the expected size of the output, progress is shown against it.
+   */
+  void start(ProgressCallback callback, long total) {
+    this.callback = callback;
+    this.total = total;
+    written = 0;
+    lastReport = System.currentTimeMillis();
+    lastReportBytes = 0;
+  }
+
+  void cancel() {
+    cancelled = true;
+  }
+
+  /** Throws a {@link CancellationException} once the merge has been cancelled. */
+  void check() {
+    if (cancelled) throw new CancellationException();
+  }
+
+  /** Accounts for written bytes; the muxer calls this between chunks, so it also checks. */
+  void advance(long bytes) {
+    check();
+    written += bytes;
+    long now = System.currentTimeMillis();
+    if (callback == null || now - lastReport < REPORT_INTERVAL) return;
+    long speed = (written - lastReportBytes) * 1000 / (now - lastReport);
+    lastReport = now;
+    lastReportBytes = written;
+    callback.onProgress(written, Math.max(total, written), speed, null);
+  }
+}
@@ -0,0 +1,189 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import com.tencent.mmkv.MMKV;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Picks the {@link MediaMuxer} backend per input format, e.g. {@code fragmented avc1+mp4a}. Every
+ * merge is timed and the fastest backend that has worked for the format so far is tried first; a
+ * backend that fails is skipped for that format for a week, and mp4parser is the last resort.
+ */
+public class MuxerSelector implements MediaMuxer {
+
+  private static final String TAG = "MuxerSelector";
+  private static final String STREAMING = "streaming";
+  private static final String PLATFORM = "platform";
+  private static final String MP4PARSER = "mp4parser";
+  // per format and backend: milliseconds per MB of input, or FAILED
+  private static final MMKV stats = MMKV.mmkvWithID("muxer_stats");
+  private static final float FAILED = -1;
+  // a failure may have been the disk rather than the format, so give the backend another go later
+  private static final int FAILURE_EXPIRY = 7 * 24 * 3600;
+
+  static {
+    stats.enableAutoKeyExpire(MMKV.ExpireNever);
+  }
+
+  private final Map<String, Supplier<MediaMuxer>> backends = new LinkedHashMap<>();
+  private volatile MediaMuxer current;
+  private volatile boolean cancelled;
+
+  public MuxerSelector() {
+    // the default order when nothing has been measured yet
+    backends.put(STREAMING, StreamingMp4Muxer::new);
+    backends.put(PLATFORM, PlatformMediaMuxer::new);
+    backends.put(MP4PARSER, MediaMuxerImpl::new);
+  }
+
+  @Override
+  public void merge(File videoFile, File audioFile, File outputFile, ProgressCallback callback)
+      throws IOException {
+    String format = describe(videoFile, audioFile);
+    Exception failure = null;
+    for (String backend : rank(format)) {
+      try {
+        run(backend, format, videoFile, audioFile, outputFile, callback);
+        return;
+      } catch (IOException | RuntimeException e) {
+        if (cancelled || e instanceof CancellationException) throw e;
+        Log.w(TAG, backend + " failed for " + format + ", trying the next backend", e);
+        failure = e;
+      }
+    }
+    if (failure instanceof IOException) throw (IOException) failure;
+    throw (RuntimeException) failure;
+  }
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+    MediaMuxer muxer = current;
+    if (muxer != null) muxer.cancel();
+  }
+
+  /**
+   * Runs every backend on the same inputs and records their timings, for comparing backends on a
+   * device.
+   *
+   * @return the milliseconds each backend took, or -1 where it failed.
+   */
+  public Map<String, Long> benchmark(File videoFile, File audioFile, File workDir) {
+    String format = describe(videoFile, audioFile);
+    Map<String, Long> timings = new LinkedHashMap<>();
+    for (String backend : backends.keySet()) {
+      File output = new File(workDir, "benchmark_" + backend + ".mp4");
+      try {
+        timings.put(backend, run(backend, format, videoFile, audioFile, output, null));
+      } catch (IOException | RuntimeException e) {
+        Log.w(TAG, backend + " failed for " + format, e);
+        timings.put(backend, -1L);
+      } finally {
+        FileUtils.deleteQuietly(output);
+      }
+    }
+    return timings;
+  }
+
+  private long run(
+      String backend,
+      String format,
+      File video,
+      File audio,
+      File output,
+      ProgressCallback callback)
+      throws IOException {
+    MediaMuxer muxer = backends.get(backend).get();
+    current = muxer;
+    if (cancelled) throw new CancellationException();
+    long start = System.currentTimeMillis();
+    try {
+      muxer.merge(video, audio, output, callback);
+    } catch (IOException | RuntimeException e) {
+      // a cancelled merge frees its disk space right away rather than when the task goes
+      FileUtils.deleteQuietly(output);
+      if (!cancelled && !(e instanceof CancellationException)) {
+        stats.encode(key(format, backend), FAILED, FAILURE_EXPIRY);
+      }
+      throw e;
+    } finally {
+      current = null;
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    float megabytes = Math.max(1, (video.length() + audio.length()) / (1024f * 1024f));
+    float cost = elapsed / megabytes;
+    float previous = stats.decodeFloat(key(format, backend), 0);
+    // smooth out one-off hiccups such as a busy disk
+    stats.encode(key(format, backend), previous > 0 ? previous * 0.7f + cost * 0.3f : cost);
+    Log.i(TAG, backend + " muxed " + format + " in " + elapsed + " ms");
+    return elapsed;
+  }
+
+  // measured backends by speed, then unmeasured ones in the default order, failed ones dropped
+  private List<String> rank(String format) {
+    List<String> ranked = new ArrayList<>();
+    for (String backend : backends.keySet()) {
+      if (stats.decodeFloat(key(format, backend), 0) != FAILED) ranked.add(backend);
+    }
+    ranked.sort(
+        Comparator.comparingDouble(
+            backend -> {
+              float cost = stats.decodeFloat(key(format, backend), 0);
+              return cost > 0 ? cost : Float.MAX_VALUE;
+            }));
+    // never end up without a backend to try
+    if (!ranked.contains(MP4PARSER)) ranked.add(MP4PARSER);
+    return ranked;
+  }
+
+  private static String key(String format, String backend) {
+    return format + "|" + backend;
+  }
+
+  /** Names the layout and codecs of the inputs, e.g. {@code fragmented avc1+mp4a}. */
+  static String describe(File videoFile, File audioFile) {
+    try (FileChannel video = FileChannel.open(videoFile.toPath(), StandardOpenOption.READ);
+        FileChannel audio = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ)) {
+      Mp4Box videoMoov = readMoov(video);
+      Mp4Box audioMoov = readMoov(audio);
+      int fragmented =
+          (videoMoov.child("mvex") != null ? 1 : 0) + (audioMoov.child("mvex") != null ? 1 : 0);
+      return (fragmented == 2 ? "fragmented " : fragmented == 1 ? "mixed " : "plain ")
+          + sampleEntry(videoMoov)
+          + "+"
+          + sampleEntry(audioMoov);
+    } catch (IOException | RuntimeException e) {
+      return "unknown";
+    }
+  }
+
+  private static Mp4Box readMoov(FileChannel channel) throws IOException {
+    for (Mp4Box.Header header : Mp4Box.scan(channel)) {
+      if (header.type.equals("moov")) return Mp4Box.read(channel, header);
+    }
+    throw new IOException("No moov box");
+  }
+
+  // the codec fourcc of the first track, e.g. avc1, av01, vp09 or mp4a
+  private static String sampleEntry(Mp4Box moov) {
+    Mp4Box stsd = moov.find("trak/mdia/minf/stbl/stsd");
+    if (stsd == null || stsd.payload.limit() < 16) return "?";
+    byte[] type = new byte[4];
+    for (int i = 0; i < 4; ++i) {
+      type[i] = stsd.payload.get(12 + i);
+    }
+    return new String(type, StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,102 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Keeps the partial files of downloads in check. Streams and merges are written next to their
+ * output as {@code .part} files with journals, and paused or failed tasks leave theirs behind to
+ * resume from. Parts no task owns are deleted, and the parts of paused tasks are held to a quota by
+ * deleting the least recently written first; such a task starts over when it resumes.
+ */
+class PartFileJanitor {
+
+  private static final String TAG = "PartFileJanitor";
+  private static final String PART = ".part";
+  private static final String JOURNAL = ".part.journal";
+  // a part this fresh may belong to a task that started after the caller listed its tasks
+  private static final long GRACE_MS = 60_000;
+
+  private final File directory;
+
+  PartFileJanitor(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @param owned the parts of the tasks that still exist, whether they are on disk or not.
+   * @param evictable the owned parts that may be deleted to meet the quota.
+   * @param quota how many bytes the owned parts may take, 0 for no limit.
+   */
+  synchronized void sweep(Set<File> owned, Set<File> evictable, long quota) {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    long now = System.currentTimeMillis();
+    long used = 0;
+    List<File> candidates = new ArrayList<>();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(JOURNAL)) {
+        File part = new File(directory, name.substring(0, name.length() - ".journal".length()));
+        if (!part.exists() && now - file.lastModified() > GRACE_MS) delete(part);
+        continue;
+      }
+      if (!name.endsWith(PART)) continue;
+      if (!owned.contains(file)) {
+        if (now - file.lastModified() > GRACE_MS) delete(file);
+        continue;
+      }
+      used += size(file);
+      if (evictable.contains(file)) candidates.add(file);
+    }
+    if (quota <= 0 || used <= quota) return;
+    candidates.sort(Comparator.comparingLong(File::lastModified));
+    for (File file : candidates) {
+      if (used <= quota) break;
+      used -= size(file);
+      delete(file);
+    }
+  }
+
+  /**
+   * Deletes the per-download directories older versions created in the cache, holding {@code
+   * <name>.mp4}, {@code <name>.m4a} and {@code <name>_merged.mp4}, and never cleaned up.
+   */
+  static void cleanLegacyCache(File cacheDir) {
+    File[] directories = cacheDir.listFiles(File::isDirectory);
+    if (directories == null) return;
+    for (File directory : directories) {
+      String base = directory.getName();
+      File[] files = directory.listFiles();
+      // anything else in there belongs to someone else
+      if (files == null || files.length == 0) continue;
+      boolean legacy = true;
+      for (File file : files) {
+        String name = file.getName();
+        legacy &=
+            name.equals(base + ".mp4")
+                || name.equals(base + ".m4a")
+                || name.equals(base + "_merged.mp4");
+      }
+      if (legacy) {
+        Log.i(TAG, "deleting " + directory);
+        FileUtils.deleteQuietly(directory);
+      }
+    }
+  }
+
+  private static long size(File part) {
+    return part.length() + SegmentJournal.journalFile(part).length();
+  }
+
+  private static void delete(File part) {
+    Log.i(TAG, "deleting " + part);
+    FileUtils.deleteQuietly(part);
+    FileUtils.deleteQuietly(SegmentJournal.journalFile(part));
+  }
+}
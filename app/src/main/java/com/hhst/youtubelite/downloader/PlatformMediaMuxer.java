@@ -0,0 +1,108 @@
+package com.hhst.youtubelite.downloader;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Muxes with the platform's {@link MediaExtractor} and {@link android.media.MediaMuxer}. Samples
+ * go through one direct buffer, so they never land on the Java heap.
+ */
+public class PlatformMediaMuxer implements MediaMuxer {
+
+  private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+  private final MuxProgress progress = new MuxProgress();
+
+  @Override
+  public void merge(File videoFile, File audioFile, File outputFile, ProgressCallback callback)
+      throws IOException {
+    progress.start(callback, videoFile.length() + audioFile.length());
+    MediaExtractor video = new MediaExtractor();
+    MediaExtractor audio = new MediaExtractor();
+    android.media.MediaMuxer muxer = null;
+    boolean started = false;
+    try {
+      video.setDataSource(videoFile.getPath());
+      audio.setDataSource(audioFile.getPath());
+      MediaFormat videoFormat = selectTrack(video, "video/");
+      MediaFormat audioFormat = selectTrack(audio, "audio/");
+
+      muxer =
+          new android.media.MediaMuxer(
+              outputFile.getPath(), android.media.MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+      int[] tracks = {muxer.addTrack(videoFormat), muxer.addTrack(audioFormat)};
+      muxer.start();
+      started = true;
+
+      ByteBuffer buffer =
+          ByteBuffer.allocateDirect(
+              Math.max(maxInputSize(videoFormat), maxInputSize(audioFormat)));
+      MediaExtractor[] extractors = {video, audio};
+      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      while (true) {
+        // write whichever track is behind, so the output comes out interleaved
+        int next = -1;
+        for (int i = 0; i < extractors.length; ++i) {
+          long time = extractors[i].getSampleTime();
+          if (time >= 0 && (next < 0 || time < extractors[next].getSampleTime())) next = i;
+        }
+        if (next < 0) break;
+        MediaExtractor extractor = extractors[next];
+        info.offset = 0;
+        info.size = extractor.readSampleData(buffer, 0);
+        info.presentationTimeUs = extractor.getSampleTime();
+        info.flags =
+            (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                ? MediaCodec.BUFFER_FLAG_KEY_FRAME
+                : 0;
+        if (info.size < 0) break;
+        muxer.writeSampleData(tracks[next], buffer, info);
+        extractor.advance();
+        progress.advance(info.size);
+      }
+      started = false;
+      muxer.stop();
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      // the platform reports unsupported codecs and broken input this way
+      throw new IOException("Platform muxer failed: " + e.getMessage(), e);
+    } finally {
+      video.release();
+      audio.release();
+      if (muxer != null) {
+        try {
+          if (started) muxer.stop();
+        } catch (IllegalStateException ignored) {
+          // already failing, the output is discarded anyway
+        }
+        muxer.release();
+      }
+    }
+  }
+
+  @Override
+  public void cancel() {
+    progress.cancel();
+  }
+
+  private static MediaFormat selectTrack(MediaExtractor extractor, String mimePrefix) {
+    for (int i = 0; i < extractor.getTrackCount(); ++i) {
+      MediaFormat format = extractor.getTrackFormat(i);
+      String mime = format.getString(MediaFormat.KEY_MIME);
+      if (mime != null && mime.startsWith(mimePrefix)) {
+        extractor.selectTrack(i);
+        return format;
+      }
+    }
+    throw new MediaMuxerImpl.EmptyTrackException();
+  }
+
+  private static int maxInputSize(MediaFormat format) {
+    return format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+        ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+        : DEFAULT_BUFFER_SIZE;
+  }
+}
@@ -5,11 +5,23 @@ import java.io.File;
 public interface ProgressCallback {
 
   /**
-   * Called to update the progress of a download.
+   * Called to update the progress of a download. Sizes are 64-bit so files over 2 GB report
+   * correctly.
    *
-   * @param progress The current progress percentage (0-100).
+   * @param downloaded The number of bytes done so far.
+   * @param total The total number of bytes, or -1 if unknown.
+   * @param speed The current transfer rate in bytes per second.
+   * @param message An optional status detail to show next to the progress.
    */
-  void onProgress(int progress, String message);
+  void onProgress(long downloaded, long total, long speed, String message);
+
+  /**
+   * Called as the prefix of the output that is completely written grows, for consumers that read
+   * the file while the rest of it is still downloading.
+   *
+   * @param bytes The length of that prefix.
+   */
+  default void onAvailable(long bytes) {}
 
   /**
    * Called when the download is completed successfully.
@@ -0,0 +1,35 @@
+package com.hhst.youtubelite.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Reports what a muxer writes through {@link MuxProgress}, and stops it once cancelled. */
+class ProgressChannel implements WritableByteChannel {
+
+  private final WritableByteChannel target;
+  private final MuxProgress progress;
+
+  ProgressChannel(WritableByteChannel target, MuxProgress progress) {
+    this.target = target;
+    this.progress = progress;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    progress.check();
+    int written = target.write(src);
+    progress.advance(written);
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return target.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    target.close();
+  }
+}
@@ -0,0 +1,105 @@
+package com.hhst.youtubelite.downloader;
+
+import com.hhst.youtubelite.downloader.StreamingMp4Muxer.UnsupportedLayoutException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The segment index (sidx box) of a fragmented MP4 stream. It lists every subsegment, a moof and
+ * its media, with its size and duration, so a time range maps to the bytes covering it without
+ * reading anything else of the stream. DASH streams carry it at a known byte range, their index
+ * range.
+ */
+class SegmentIndex {
+
+  final long timescale;
+  final List<Reference> references = new ArrayList<>();
+
+  private SegmentIndex(long timescale) {
+    this.timescale = timescale;
+  }
+
+  /** Fetches and parses the index at bytes {@code start} to {@code end} of a stream. */
+  static SegmentIndex fetch(String url, long start, long end) throws IOException {
+    return parse(ByteBuffer.wrap(SegmentedFileDownloader.fetch(url, start, end)), start);
+  }
+
+  /**
+   * @param box the sidx box, header included.
+   * @param offset where the box starts in the stream, subsegment offsets are relative to its end.
+   */
+  static SegmentIndex parse(ByteBuffer box, long offset) throws IOException {
+    if (box.remaining() < 8) throw new UnsupportedLayoutException("Truncated segment index");
+    long size = box.getInt() & 0xFFFFFFFFL;
+    byte[] type = new byte[4];
+    box.get(type);
+    if (!new String(type, StandardCharsets.US_ASCII).equals("sidx")) {
+      throw new UnsupportedLayoutException("No segment index at " + offset);
+    }
+    if (size == 1) size = box.getLong();
+    int version = box.getInt() >>> 24;
+    box.getInt(); // reference id
+    SegmentIndex index = new SegmentIndex(box.getInt() & 0xFFFFFFFFL);
+    long time = version == 0 ? box.getInt() & 0xFFFFFFFFL : box.getLong();
+    long position = offset + size + (version == 0 ? box.getInt() & 0xFFFFFFFFL : box.getLong());
+    box.getShort(); // reserved
+    int count = box.getShort() & 0xFFFF;
+    if (box.remaining() < count * 12L) {
+      throw new UnsupportedLayoutException("Truncated segment index");
+    }
+    for (int i = 0; i < count; ++i) {
+      int reference = box.getInt();
+      long duration = box.getInt() & 0xFFFFFFFFL;
+      box.getInt(); // stream access point
+      // a reference to another index, which DASH streams from YouTube do not use
+      if (reference < 0) throw new UnsupportedLayoutException("Hierarchical segment index");
+      long length = reference & 0x7FFFFFFFL;
+      index.references.add(new Reference(position, length, time, duration));
+      position += length;
+      time += duration;
+    }
+    return index;
+  }
+
+  /** Where the last subsegment ends, in milliseconds. */
+  long getDuration() {
+    if (references.isEmpty()) return 0;
+    Reference last = references.get(references.size() - 1);
+    return (last.time + last.duration) * 1000 / timescale;
+  }
+
+  /** The subsegments overlapping {@code start} to {@code end}, in milliseconds. */
+  List<Reference> select(long start, long end) {
+    List<Reference> selected = new ArrayList<>();
+    for (Reference reference : references) {
+      if (reference.time * 1000 < end * timescale
+          && (reference.time + reference.duration) * 1000 > start * timescale) {
+        selected.add(reference);
+      }
+    }
+    return selected;
+  }
+
+  /** One subsegment of the stream. */
+  static class Reference {
+    final long offset;
+    final long size;
+    // earliest presentation time, in the timescale of the index
+    final long time;
+    final long duration;
+
+    Reference(long offset, long size, long time, long duration) {
+      this.offset = offset;
+      this.size = size;
+      this.time = time;
+      this.duration = duration;
+    }
+
+    long end() {
+      return offset + size - 1;
+    }
+  }
+}
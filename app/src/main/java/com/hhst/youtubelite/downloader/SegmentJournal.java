@@ -0,0 +1,148 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Records which byte ranges of a segmented download are already on disk, so the transfer can be
+ * resumed from the last committed offset after a crash or a lost connection. The journal lives
+ * next to the partial file as {@code <file>.journal}.
+ */
+public class SegmentJournal {
+
+  private static final String TAG = "SegmentJournal";
+  private static final Gson gson = new Gson();
+  private static final Pattern ITAG = Pattern.compile("[?&]itag=(\\d+)");
+
+  private String url;
+  private String itag;
+  private String output;
+  private long total;
+  private boolean completed;
+  private List<Segment> segments;
+
+  private transient File file;
+
+  SegmentJournal(String url, File output, long total, List<Segment> segments) {
+    this.url = url;
+    this.itag = parseItag(url);
+    this.output = output.getPath();
+    this.total = total;
+    this.segments = segments;
+    this.file = journalFile(output);
+  }
+
+  static File journalFile(File output) {
+    return new File(output.getPath() + ".journal");
+  }
+
+  /** Loads the journal of the given partial file, or returns null if there is none. */
+  static SegmentJournal load(File output) {
+    File file = journalFile(output);
+    if (!file.exists()) return null;
+    try {
+      SegmentJournal journal =
+          gson.fromJson(
+              FileUtils.readFileToString(file, StandardCharsets.UTF_8), SegmentJournal.class);
+      if (journal == null || journal.segments == null) return null;
+      journal.file = file;
+      return journal;
+    } catch (Exception e) {
+      Log.w(TAG, "discard unreadable journal " + file, e);
+      return null;
+    }
+  }
+
+  static String parseItag(String url) {
+    Matcher matcher = ITAG.matcher(url);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * Stream URLs expire and carry signatures, so a journal belongs to a download when the stream
+   * (itag) and its total length are the same, not when the URL string is.
+   */
+  boolean matches(String url, long total) {
+    return this.total == total && total > 0 && Objects.equals(itag, parseItag(url));
+  }
+
+  /** Follows a refreshed stream URL, the itag stays the same. */
+  synchronized void setUrl(String url) {
+    this.url = url;
+  }
+
+  boolean isCompleted() {
+    return completed;
+  }
+
+  List<Segment> getSegments() {
+    return segments;
+  }
+
+  long getDownloaded() {
+    long downloaded = 0;
+    for (Segment segment : segments) {
+      downloaded += segment.position - segment.start;
+    }
+    return downloaded;
+  }
+
+  /**
+   * Writes the journal. The segment offsets are captured before the data is forced to disk, so a
+   * recorded offset never points past bytes that are durable.
+   */
+  synchronized void commit(FileChannel channel) throws IOException {
+    List<Segment> snapshot = new ArrayList<>(segments.size());
+    for (Segment segment : segments) {
+      snapshot.add(new Segment(segment.start, segment.end, segment.position, segment.shift));
+    }
+    if (channel != null) {
+      channel.force(false);
+    }
+    SegmentJournal copy = new SegmentJournal(url, new File(output), total, snapshot);
+    copy.completed = completed;
+    File temp = new File(file.getPath() + ".tmp");
+    FileUtils.writeStringToFile(temp, gson.toJson(copy), StandardCharsets.UTF_8);
+    if (!temp.renameTo(file)) {
+      throw new IOException("Failed to commit journal " + file);
+    }
+  }
+
+  synchronized void complete(FileChannel channel) throws IOException {
+    completed = true;
+    commit(channel);
+  }
+
+  void delete() {
+    FileUtils.deleteQuietly(file);
+  }
+
+  static class Segment {
+    long start;
+    long end;
+    volatile long position;
+    // how far the bytes are from their place in the output, when only ranges of a file are fetched
+    long shift;
+
+    Segment(long start, long end) {
+      this(start, end, start, 0);
+    }
+
+    Segment(long start, long end, long position, long shift) {
+      this.start = start;
+      this.end = end;
+      this.position = position;
+      this.shift = shift;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.hhst.youtubelite.downloader;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The playlist of a stream that is only served segment by segment, such as a live stream. It may
+ * grow while the stream is recorded, see {@link SegmentedStreamDownloader}.
+ */
+interface SegmentSource {
+
+  /**
+   * Loads the playlist again.
+   *
+   * @return the segments not returned before, in order; empty if there are no new ones yet.
+   */
+  List<Segment> poll() throws IOException;
+
+  /** Whether the segments returned so far are all the stream has. */
+  boolean isEnded();
+
+  /** How long to wait before polling again when nothing new came, in milliseconds. */
+  long getPollInterval();
+
+  /** Returns only the segments from {@code sequence} on, to resume an earlier recording. */
+  void skipTo(long sequence);
+
+  /** How many segments left the playlist before they were returned, e.g. after a stall. */
+  default long getMissed() {
+    return 0;
+  }
+
+  /** Whether every segment carries its own init segment, which is kept from the first only. */
+  default boolean repeatsInit() {
+    return false;
+  }
+
+  /**
+   * Resolves a new URL for a segment the server rejected as expired.
+   *
+   * @return null if the source cannot.
+   */
+  default String refresh(Segment segment) throws Exception {
+    return null;
+  }
+
+  /** One segment of the stream; the init segment, if any, comes first. */
+  class Segment {
+    final long sequence;
+    final String url;
+
+    Segment(long sequence, String url) {
+      this.sequence = sequence;
+      this.url = url;
+    }
+  }
+}
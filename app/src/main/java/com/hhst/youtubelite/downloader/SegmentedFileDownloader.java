@@ -0,0 +1,698 @@
+package com.hhst.youtubelite.downloader;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import com.hhst.youtubelite.downloader.SegmentJournal.Segment;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Downloads a file by splitting it into HTTP Range segments that are fetched in parallel and
+ * written with positional {@link FileChannel} writes into a preallocated output file. Progress is
+ * recorded in a {@link SegmentJournal}, so a stopped transfer resumes where it left off.
+ *
+ * <p>googlevideo throttles long single-connection transfers, so stream URLs from there are fetched
+ * as a sequence of bounded chunk requests using the {@code range=} query parameter instead. A few
+ * chunks are kept in flight ahead and each lands at its own offset of the output.
+ *
+ * <p>The number of concurrent connections is not fixed: a {@link ConnectionController} per task and
+ * per host grows it while throughput scales and shrinks it on errors and throttling.
+ *
+ * <p>When the server rejects the URL as expired (403/410) the transfer asks its {@link
+ * UrlRefresher} for a new one and the segments carry on from their current offsets.
+ *
+ * <p>Since segments are handed out in file order, the output fills up from the front; how far it
+ * is contiguous is reported through {@link ProgressCallback#onAvailable}.
+ *
+ * <p>A transfer may be limited to some byte ranges of the file, which are laid out back to back in
+ * the output. Segments never span two ranges, and each records how far its bytes are from their
+ * place in the output.
+ */
+public class SegmentedFileDownloader implements AdvancedFileDownloader {
+
+  private static final String TAG = "SegmentedFileDownloader";
+  private static final int CONNECT_TIMEOUT = 15_000;
+  private static final int READ_TIMEOUT = 30_000;
+  private static final long PROGRESS_INTERVAL = 1000;
+  private static final long RETRY_DELAY = 1000;
+  private static final long JOURNAL_INTERVAL = 3000;
+  // how long the coordinator waits for a connection before checking whether it was stopped
+  private static final long ACQUIRE_TIMEOUT = 500;
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+  private static final Pattern CONTENT_LENGTH_PARAM = Pattern.compile("[?&]clen=(\\d+)");
+  private static final long CHUNK_SIZE = 10 * 1024 * 1024;
+  private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+  // how often one file may ask for a new URL before an expiry counts as a real failure
+  private static final int MAX_REFRESHES = 3;
+
+  private final int connections;
+  private final int maxConnections;
+  private final int bufferSize;
+  private final int maxRetries;
+  // runs one coordinator per file, which only waits on its segments
+  private final ExecutorService coordinator = Executors.newCachedThreadPool();
+  // bounded pool shared by the segments of every file, a segment only gets a thread once the
+  // controllers granted it a connection
+  private final ThreadPoolExecutor network;
+  private final BlockingQueue<ByteBuffer> buffers;
+  private final Map<String, List<Transfer>> tasks = new ConcurrentHashMap<>();
+  private final Map<String, ConnectionController> taskControllers = new ConcurrentHashMap<>();
+  private final Map<String, ConnectionController> hostControllers = new ConcurrentHashMap<>();
+  private final BandwidthGovernor governor = BandwidthGovernor.getInstance();
+
+  public SegmentedFileDownloader() {
+    this(4, 256 * 1024, 3);
+  }
+
+  /**
+   * @param connections The initial number of concurrent connections of a task, the controllers
+   *     adapt it between 1 and twice this value.
+   * @param bufferSize The size of the direct buffer each segment reads into.
+   * @param maxRetries How many times a failed segment is retried from its current offset.
+   */
+  public SegmentedFileDownloader(int connections, int bufferSize, int maxRetries) {
+    this.connections = connections;
+    this.maxConnections = connections * 2;
+    this.bufferSize = bufferSize;
+    this.maxRetries = maxRetries;
+    int threads = maxConnections * 2;
+    network =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            DownloadPipeline.networkThreads());
+    network.allowCoreThreadTimeOut(true);
+    buffers = new ArrayBlockingQueue<>(threads);
+  }
+
+  @Override
+  public void download(
+      String url,
+      List<long[]> ranges,
+      File output,
+      ProgressCallback callback,
+      String tag,
+      UrlRefresher refresher) {
+    ConnectionController hostController =
+        hostControllers.computeIfAbsent(getHost(url), k -> newController());
+    if (tag == null) {
+      Transfer transfer =
+          new Transfer(
+              url, ranges, output, callback, null, refresher, newController(), hostController);
+      coordinator.submit(() -> run(transfer));
+      return;
+    }
+    // registered in one step with the controller, so forget() cannot drop it in between
+    Transfer[] registered = new Transfer[1];
+    tasks.compute(
+        tag,
+        (key, transfers) -> {
+          if (transfers == null) transfers = new Vector<>();
+          ConnectionController controller =
+              taskControllers.computeIfAbsent(key, k -> newController());
+          registered[0] =
+              new Transfer(
+                  url, ranges, output, callback, tag, refresher, controller, hostController);
+          transfers.add(registered[0]);
+          return transfers;
+        });
+    coordinator.submit(() -> run(registered[0]));
+  }
+
+  /** Drops a finished transfer, and the task's controller along with its last transfer. */
+  private void forget(Transfer transfer) {
+    if (transfer.tag == null) return;
+    tasks.computeIfPresent(
+        transfer.tag,
+        (tag, transfers) -> {
+          transfers.remove(transfer);
+          if (!transfers.isEmpty()) return transfers;
+          taskControllers.remove(tag);
+          return null;
+        });
+  }
+
+  @Override
+  public void cancel(String tag) {
+    if (tag == null) {
+      return;
+    }
+    List<Transfer> _tasks = tasks.get(tag);
+    if (_tasks != null) {
+      _tasks.forEach(Transfer::cancel);
+    }
+  }
+
+  private void run(Transfer transfer) {
+    try {
+      // the length of some ranges is known up front
+      long total = transfer.ranges != null ? length(transfer.ranges) : probeRefreshing(transfer);
+      transfer.total = total;
+      SegmentJournal journal = SegmentJournal.load(transfer.output);
+      boolean resume =
+          journal != null
+              && journal.matches(transfer.url, total)
+              && transfer.output.length() == total;
+      if (resume && journal.isCompleted()) {
+        transfer.callback.onProgress(total, total, 0, null);
+        transfer.callback.onComplete(transfer.output);
+        return;
+      }
+      if (resume) {
+        Log.i(TAG, "resume " + transfer.output + " at " + journal.getDownloaded() + "/" + total);
+      } else {
+        // ranges are only resumable when the length is known
+        journal =
+            total > 0
+                ? new SegmentJournal(transfer.url, transfer.output, total, split(transfer, total))
+                : null;
+      }
+      List<Segment> segments = journal != null ? journal.getSegments() : split(transfer, total);
+      try (RandomAccessFile file = new RandomAccessFile(transfer.output, "rw")) {
+        if (total > 0 && !resume) {
+          file.setLength(total);
+          reserve(file, transfer.output, total);
+        }
+        FileChannel channel = file.getChannel();
+        transfer.channel = channel;
+        transfer.journal = journal;
+        transfer.segments = segments;
+        if (journal != null) {
+          journal.commit(channel);
+          transfer.downloaded.set(journal.getDownloaded());
+        }
+        // segments are handed out in file order, each once the controllers have room for it
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+          for (Segment segment : segments) {
+            if (segment.end >= 0 && segment.position > segment.end) continue;
+            if (!acquireConnection(transfer)) break;
+            futures.add(network.submit(() -> runSegment(transfer, segment, channel)));
+          }
+          awaitSegments(transfer, futures);
+        } finally {
+          // keep whatever made it to disk, the next attempt resumes from there
+          if (journal != null) {
+            journal.commit(channel);
+          }
+        }
+        if (total < 0) {
+          // unknown length, cut the file to what was actually written
+          channel.truncate(transfer.downloaded.get());
+        }
+        if (transfer.cancelled.get()) {
+          transfer.callback.onCancel();
+          return;
+        }
+        if (journal != null) {
+          journal.complete(channel);
+        }
+      }
+      long size = transfer.output.length();
+      transfer.callback.onProgress(size, size, 0, null);
+      transfer.callback.onComplete(transfer.output);
+    } catch (CancellationException e) {
+      transfer.callback.onCancel();
+    } catch (Exception e) {
+      if (transfer.cancelled.get()) {
+        transfer.callback.onCancel();
+      } else {
+        Log.e(TAG, "download failed: " + transfer.url, e);
+        transfer.callback.onError(e);
+      }
+    } finally {
+      forget(transfer);
+    }
+  }
+
+  /**
+   * Allocates the blocks of a new output up front. {@code setLength} alone leaves a sparse file on
+   * most file systems, which then runs out of space only once the writes get that far.
+   */
+  private static void reserve(RandomAccessFile file, File output, long total) throws IOException {
+    try {
+      Os.posix_fallocate(file.getFD(), 0, total);
+    } catch (ErrnoException e) {
+      if (e.errno == OsConstants.ENOSPC) {
+        throw new InsufficientSpaceException(total, output.getParentFile().getUsableSpace());
+      }
+      // not every file system supports it, e.g. FUSE on shared storage; the writes allocate then
+    }
+  }
+
+  /**
+   * Blocks the coordinator until both the task's and the host's controller allow one more
+   * connection, so the pool threads never wait on a limit.
+   *
+   * @return false if the transfer was stopped in the meantime.
+   */
+  private boolean acquireConnection(Transfer transfer) throws InterruptedException {
+    while (!transfer.isStopped()) {
+      if (!transfer.hostController.tryAcquire(ACQUIRE_TIMEOUT)) continue;
+      if (transfer.controller.tryAcquire(ACQUIRE_TIMEOUT)) return true;
+      transfer.hostController.release();
+    }
+    return false;
+  }
+
+  // the first failure of a segment fails the file, the rest end as cancelled
+  private void awaitSegments(Transfer transfer, List<Future<?>> futures) throws Exception {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException ignored) {
+        // recorded by runSegment
+      }
+    }
+    Exception failure = transfer.failure.get();
+    if (failure != null) throw failure;
+  }
+
+  // a paused or restored task may start with a URL that already expired
+  private long probeRefreshing(Transfer transfer) throws Exception {
+    while (true) {
+      String url = transfer.url;
+      try {
+        return probe(transfer);
+      } catch (HttpStatusException e) {
+        if (!isExpired(e) || !transfer.refreshUrl(url)) throw e;
+      }
+    }
+  }
+
+  /**
+   * Asks for the first byte to learn the total length and whether the server honours ranges.
+   *
+   * @return the total length, or -1 if the server does not support ranges.
+   */
+  private long probe(Transfer transfer) throws IOException {
+    if (transfer.chunked) {
+      // googlevideo URLs carry their content length, which saves a round trip
+      Matcher matcher = CONTENT_LENGTH_PARAM.matcher(transfer.url);
+      if (matcher.find()) {
+        return Long.parseLong(matcher.group(1));
+      }
+    }
+    HttpURLConnection connection = open(transfer.url, 0, 0, false);
+    try {
+      int code = connection.getResponseCode();
+      if (code == HttpURLConnection.HTTP_PARTIAL) {
+        Matcher matcher = CONTENT_RANGE.matcher(connection.getHeaderField("Content-Range"));
+        if (matcher.matches()) {
+          return Long.parseLong(matcher.group(1));
+        }
+      } else if (code >= 400) {
+        throw new HttpStatusException(code, transfer.url);
+      }
+      return -1;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private List<Segment> split(Transfer transfer, long total) {
+    List<Segment> segments = new ArrayList<>();
+    if (total <= 0) {
+      // no range support, stream the whole body on a single connection
+      segments.add(new Segment(0, -1));
+      return segments;
+    }
+    // more segments than connections, so the controllers have room to scale
+    long size =
+        transfer.chunked
+            ? CHUNK_SIZE
+            : Math.max(MIN_SEGMENT_SIZE, (total + maxConnections * 2L - 1) / (maxConnections * 2L));
+    List<long[]> ranges =
+        transfer.ranges != null ? transfer.ranges : List.of(new long[] {0, total - 1});
+    long position = 0;
+    for (long[] range : ranges) {
+      long length = range[1] - range[0] + 1;
+      for (long start = 0; start < length; start += size) {
+        long end = position + Math.min(start + size, length) - 1;
+        segments.add(new Segment(position + start, end, position + start, range[0] - position));
+      }
+      position += length;
+    }
+    return segments;
+  }
+
+  static long length(List<long[]> ranges) {
+    long length = 0;
+    for (long[] range : ranges) {
+      length += range[1] - range[0] + 1;
+    }
+    return length;
+  }
+
+  /** Fetches a segment on the connection acquired for it, and releases that connection. */
+  private Void runSegment(Transfer transfer, Segment segment, FileChannel channel)
+      throws Exception {
+    try {
+      fetchSegment(transfer, segment, channel);
+      transfer.reportAvailable();
+      return null;
+    } catch (Exception e) {
+      // stop the remaining segments, one failure fails the whole file
+      if (!(e instanceof CancellationException) && transfer.failure.compareAndSet(null, e)) {
+        transfer.stopped.set(true);
+        transfer.disconnectAll();
+      }
+      throw e;
+    } finally {
+      transfer.controller.release();
+      transfer.hostController.release();
+    }
+  }
+
+  private void fetchSegment(Transfer transfer, Segment segment, FileChannel channel)
+      throws IOException, InterruptedException {
+    int attempt = 0;
+    while (true) {
+      if (transfer.isStopped()) throw new CancellationException();
+      IOException failure;
+      String url = transfer.url;
+      try {
+        transferSegment(transfer, url, segment, channel);
+        return;
+      } catch (IOException e) {
+        failure = e;
+      }
+      // connections dropped by a cancel are not a sign of congestion
+      if (transfer.isStopped()) throw failure;
+      if (failure instanceof HttpStatusException && isExpired((HttpStatusException) failure)) {
+        // an expired URL is not congestion either, and the retry resumes at segment.position
+        if (refreshUrl(transfer, url)) continue;
+        throw failure;
+      }
+      boolean throttled =
+          failure instanceof HttpStatusException
+              && (((HttpStatusException) failure).code == 429
+                  || ((HttpStatusException) failure).code == 503);
+      transfer.controller.onError(throttled);
+      transfer.hostController.onError(throttled);
+      // a segment without a known end cannot be resumed from its offset
+      if (segment.end < 0 || ++attempt > maxRetries) throw failure;
+      Log.w(TAG, "retry segment " + segment.position + "-" + segment.end, failure);
+      Thread.sleep(RETRY_DELAY * attempt);
+    }
+  }
+
+  private boolean refreshUrl(Transfer transfer, String url) throws IOException {
+    try {
+      return transfer.refreshUrl(url);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Failed to refresh the expired URL", e);
+    }
+  }
+
+  private void transferSegment(
+      Transfer transfer, String url, Segment segment, FileChannel channel)
+      throws IOException, InterruptedException {
+    if (segment.end >= 0 && segment.position > segment.end) return;
+    HttpURLConnection connection =
+        open(url, segment.position + segment.shift, segment.end + segment.shift, transfer.chunked);
+    transfer.connections.add(connection);
+    ByteBuffer buffer = acquireBuffer();
+    try {
+      int code = connection.getResponseCode();
+      if (code >= 400) throw new HttpStatusException(code, url);
+      // a range= chunk is answered with a plain 200 carrying just the requested bytes
+      int expected = transfer.chunked ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL;
+      if (segment.end >= 0 && code != expected) {
+        throw new IOException("Server ignored range request: " + code);
+      }
+      try (InputStream in = connection.getInputStream();
+          ReadableByteChannel source = Channels.newChannel(in)) {
+        while (!transfer.isStopped()) {
+          buffer.clear();
+          if (source.read(buffer) < 0) break;
+          buffer.flip();
+          governor.acquire(transfer.tag, buffer.remaining());
+          while (buffer.hasRemaining()) {
+            int written = channel.write(buffer, segment.position);
+            segment.position += written;
+            transfer.downloaded.addAndGet(written);
+            transfer.controller.onBytes(written);
+            transfer.hostController.onBytes(written);
+          }
+          transfer.reportProgress();
+          transfer.commitJournal();
+        }
+      }
+      if (segment.end >= 0 && segment.position <= segment.end && !transfer.isStopped()) {
+        throw new IOException("Segment ended early at " + segment.position);
+      }
+    } finally {
+      releaseBuffer(buffer);
+      transfer.connections.remove(connection);
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Reads bytes {@code start} to {@code end} of a file in one request, for small pieces such as the
+   * segment index of a DASH stream.
+   */
+  static byte[] fetch(String url, long start, long end) throws IOException {
+    boolean chunked = isGoogleVideo(url);
+    HttpURLConnection connection = open(url, start, end, chunked);
+    try {
+      int code = connection.getResponseCode();
+      if (code >= 400) throw new HttpStatusException(code, url);
+      if (code != (chunked ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL)) {
+        throw new IOException("Server ignored range request: " + code);
+      }
+      try (InputStream in = connection.getInputStream()) {
+        return IOUtils.toByteArray(in);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static HttpURLConnection open(String url, long start, long end, boolean chunked)
+      throws IOException {
+    if (chunked && end >= 0) {
+      url += (url.contains("?") ? "&" : "?") + "range=" + start + "-" + end;
+    }
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    if (!chunked && end >= 0) {
+      connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+    }
+    return connection;
+  }
+
+  private ConnectionController newController() {
+    return new ConnectionController(1, connections, maxConnections);
+  }
+
+  private static String getHost(String url) {
+    try {
+      String host = new URL(url).getHost();
+      return host != null ? host : "";
+    } catch (MalformedURLException e) {
+      return "";
+    }
+  }
+
+  static boolean isExpired(HttpStatusException e) {
+    return e.code == HttpURLConnection.HTTP_FORBIDDEN || e.code == HttpURLConnection.HTTP_GONE;
+  }
+
+  private static boolean isGoogleVideo(String url) {
+    return getHost(url).endsWith(".googlevideo.com");
+  }
+
+  private ByteBuffer acquireBuffer() {
+    ByteBuffer buffer = buffers.poll();
+    return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  private void releaseBuffer(ByteBuffer buffer) {
+    buffer.clear();
+    boolean ignored = buffers.offer(buffer);
+  }
+
+  public static class HttpStatusException extends IOException {
+    public final int code;
+
+    public HttpStatusException(int code, String url) {
+      super("HTTP " + code + " for " + url);
+      this.code = code;
+    }
+  }
+
+  /** Thrown when the volume of the output cannot hold what a download still has to write. */
+  public static class InsufficientSpaceException extends IOException {
+    public final long required;
+    public final long usable;
+
+    public InsufficientSpaceException(long required, long usable) {
+      super("Need " + required + " bytes, " + usable + " are free");
+      this.required = required;
+      this.usable = usable;
+    }
+  }
+
+  private static class Transfer {
+    final File output;
+    // null for the whole file
+    final List<long[]> ranges;
+    final ProgressCallback callback;
+    final String tag;
+    final UrlRefresher refresher;
+    final boolean chunked;
+    final ConnectionController controller;
+    final ConnectionController hostController;
+    final AtomicLong downloaded = new AtomicLong();
+    final AtomicLong lastReport = new AtomicLong();
+    volatile long lastReportBytes;
+    final AtomicBoolean cancelled = new AtomicBoolean(false);
+    // set when a sibling segment failed and the others should give up
+    final AtomicBoolean stopped = new AtomicBoolean(false);
+    // the first segment failure, which fails the file
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    final AtomicLong lastCommit = new AtomicLong(System.currentTimeMillis());
+    final Set<HttpURLConnection> connections = ConcurrentHashMap.newKeySet();
+    volatile String url;
+    int refreshes;
+    volatile long total = -1;
+    volatile FileChannel channel;
+    volatile SegmentJournal journal;
+    volatile List<Segment> segments;
+    // guarded by this
+    long available;
+
+    Transfer(
+        String url,
+        List<long[]> ranges,
+        File output,
+        ProgressCallback callback,
+        String tag,
+        UrlRefresher refresher,
+        ConnectionController controller,
+        ConnectionController hostController) {
+      this.url = url;
+      this.ranges = ranges;
+      this.output = output;
+      this.callback = callback;
+      this.tag = tag;
+      this.refresher = refresher;
+      this.chunked = isGoogleVideo(url);
+      this.controller = controller;
+      this.hostController = hostController;
+    }
+
+    void reportProgress() {
+      long now = System.currentTimeMillis();
+      long last = lastReport.get();
+      if (now - last < PROGRESS_INTERVAL || !lastReport.compareAndSet(last, now)) {
+        return;
+      }
+      long bytes = downloaded.get();
+      long speed = last > 0 ? (bytes - lastReportBytes) * 1000 / (now - last) : 0;
+      lastReportBytes = bytes;
+      callback.onProgress(bytes, total, speed, controller.describe());
+      reportAvailable();
+    }
+
+    // the first unfinished segment marks the end of the contiguous prefix
+    synchronized void reportAvailable() {
+      List<Segment> list = segments;
+      if (list == null) return;
+      long prefix = -1;
+      for (Segment segment : list) {
+        if (segment.end < 0 || segment.position <= segment.end) {
+          prefix = segment.position;
+          break;
+        }
+      }
+      if (prefix < 0) prefix = total > 0 ? total : downloaded.get();
+      if (prefix <= available) return;
+      available = prefix;
+      callback.onAvailable(prefix);
+    }
+
+    void commitJournal() throws IOException {
+      long now = System.currentTimeMillis();
+      long last = lastCommit.get();
+      if (journal == null || now - last < JOURNAL_INTERVAL) return;
+      if (!lastCommit.compareAndSet(last, now)) return;
+      journal.commit(channel);
+    }
+
+    /**
+     * Replaces an expired URL. Segments failing on the same URL at once share one refresh.
+     *
+     * @return whether there is a newer URL to retry with.
+     */
+    synchronized boolean refreshUrl(String expiredUrl) throws Exception {
+      if (!expiredUrl.equals(url)) return true;
+      if (refresher == null || refreshes >= MAX_REFRESHES || isStopped()) return false;
+      ++refreshes;
+      Log.i(TAG, "refresh expired url of " + output);
+      String fresh = refresher.refresh(expiredUrl);
+      if (fresh == null) return false;
+      url = fresh;
+      if (journal != null) {
+        journal.setUrl(fresh);
+      }
+      return true;
+    }
+
+    boolean isStopped() {
+      return cancelled.get() || stopped.get();
+    }
+
+    void cancel() {
+      if (cancelled.compareAndSet(false, true)) {
+        disconnectAll();
+      }
+    }
+
+    void disconnectAll() {
+      // unblocks segment threads stuck in a read
+      connections.forEach(HttpURLConnection::disconnect);
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package com.hhst.youtubelite.downloader;
+
+import android.util.Log;
+import com.hhst.youtubelite.downloader.SegmentSource.Segment;
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.HttpStatusException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Records a stream that is served as a list of segments, such as a live stream, by appending the
+ * segments to the output in order. Up to {@link #WINDOW} segments are fetched at once, so one slow
+ * segment does not hold up the ones behind it and a live stream is not outrun by one round trip
+ * per segment; each segment is retried on its own.
+ *
+ * <p>How far the output is complete is kept in a journal next to it, so a recording that was
+ * stopped resumes behind its last segment.
+ */
+class SegmentedStreamDownloader {
+
+  private static final String TAG = "SegmentedStreamDownloader";
+  private static final int WINDOW = 4;
+  private static final int MAX_RETRIES = 5;
+  private static final int CONNECT_TIMEOUT = 15_000;
+  private static final int READ_TIMEOUT = 30_000;
+  private static final long RETRY_DELAY = 1000;
+  private static final long PROGRESS_INTERVAL = 1000;
+
+  private final SegmentSource source;
+  private final File output;
+  private final String tag;
+  private final ProgressCallback callback;
+  private final BandwidthGovernor governor = BandwidthGovernor.getInstance();
+  private final Set<HttpURLConnection> connections = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean stopped = new AtomicBoolean();
+  private final CountDownLatch stopSignal = new CountDownLatch(1);
+  // the bytes of the segments fetched or being fetched but not written yet
+  private final AtomicLong inFlight = new AtomicLong();
+  private long lastReport;
+  private long lastReportBytes;
+  private long segments;
+
+  /**
+   * @param tag the task the transfer is throttled as, see {@link BandwidthGovernor}.
+   * @param callback only receives progress; completion is up to the caller of {@link #run}.
+   */
+  SegmentedStreamDownloader(
+      SegmentSource source, File output, String tag, ProgressCallback callback) {
+    this.source = source;
+    this.output = output;
+    this.tag = tag;
+    this.callback = callback;
+  }
+
+  /**
+   * Records until the stream ends or {@link #stop} is called, blocking.
+   *
+   * @return whether the stream ended, rather than being stopped.
+   */
+  boolean run() throws IOException, InterruptedException {
+    ExecutorService network =
+        Executors.newFixedThreadPool(WINDOW, DownloadPipeline.networkThreads());
+    Deque<Segment> queued = new ArrayDeque<>();
+    Deque<Pending> window = new ArrayDeque<>();
+    long position = resume();
+    try (FileChannel channel =
+        FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      // drops whatever was written after the last commit
+      channel.truncate(position);
+      long lastPoll = 0;
+      while (!stopped.get()) {
+        while (window.size() < WINDOW && !queued.isEmpty()) {
+          Segment segment = queued.poll();
+          window.add(new Pending(segment, network.submit(() -> fetch(segment))));
+        }
+        long now = System.currentTimeMillis();
+        // keep the playlist ahead of the window so the next segments are known in time
+        if (queued.isEmpty()
+            && !source.isEnded()
+            && (window.isEmpty() || now - lastPoll >= source.getPollInterval())) {
+          lastPoll = now;
+          queued.addAll(poll());
+          if (!queued.isEmpty()) continue;
+        }
+        if (window.isEmpty()) {
+          if (source.isEnded()) break;
+          stopSignal.await(source.getPollInterval(), TimeUnit.MILLISECONDS);
+          continue;
+        }
+        Pending head = window.peek();
+        byte[] data = await(head.future, position);
+        if (data == null) break;
+        window.poll();
+        inFlight.addAndGet(-data.length);
+        if (source.repeatsInit() && position > 0) data = stripInit(data);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+        ++segments;
+        commit(head.segment.sequence + 1, position);
+        reportProgress(position);
+      }
+      return !stopped.get();
+    } finally {
+      for (Pending pending : window) {
+        pending.future.cancel(true);
+      }
+      network.shutdownNow();
+    }
+  }
+
+  /** Stops the recording, leaving the segments written so far. */
+  void stop() {
+    if (!stopped.compareAndSet(false, true)) return;
+    stopSignal.countDown();
+    for (HttpURLConnection connection : connections) {
+      connection.disconnect();
+    }
+  }
+
+  /** Removes the journal of a finished or abandoned recording of {@code output}. */
+  static void clearJournal(File output) {
+    boolean ignored = SegmentJournal.journalFile(output).delete();
+  }
+
+  /**
+   * Skips the segments the journal committed and returns where the output ends with them. A journal
+   * that cannot be resumed from does not cost the data it described: the output is moved aside and
+   * the stream starts over in a new one.
+   */
+  private long resume() throws IOException {
+    File journal = SegmentJournal.journalFile(output);
+    if (!journal.exists()) return 0;
+    try {
+      String[] fields = FileUtils.readFileToString(journal, StandardCharsets.UTF_8).split(" ");
+      long next = Long.parseLong(fields[0].trim());
+      long committed = Long.parseLong(fields[1].trim());
+      if (committed > 0 && committed <= output.length()) {
+        source.skipTo(next);
+        Log.i(TAG, "resume " + output + " at segment " + next);
+        return committed;
+      }
+      Log.w(TAG, "journal of " + output + " does not match it");
+    } catch (RuntimeException | IOException e) {
+      Log.w(TAG, "unreadable journal of " + output, e);
+    }
+    if (output.length() > 0) {
+      File kept = new File(output.getPath() + ".old");
+      for (int i = 2; kept.exists(); ++i) {
+        kept = new File(output.getPath() + ".old" + i);
+      }
+      Files.move(output.toPath(), kept.toPath());
+      Log.w(TAG, "kept " + output + " as " + kept + ", recording anew");
+    }
+    clearJournal(output);
+    return 0;
+  }
+
+  // written aside and renamed over the journal, so a crash leaves either the old or the new one
+  private void commit(long next, long position) throws IOException {
+    File journal = SegmentJournal.journalFile(output);
+    File temp = new File(journal.getPath() + ".tmp");
+    FileUtils.writeStringToFile(temp, next + " " + position, StandardCharsets.UTF_8);
+    if (!temp.renameTo(journal)) {
+      throw new IOException("Failed to commit journal " + journal);
+    }
+  }
+
+  private byte[] await(Future<byte[]> future, long position)
+      throws IOException, InterruptedException {
+    while (true) {
+      try {
+        return future.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (stopped.get()) return null;
+        reportProgress(position);
+      } catch (ExecutionException e) {
+        if (stopped.get()) return null;
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  // a live playlist that fails to load is loaded again rather than ending the recording
+  private List<Segment> poll() throws IOException, InterruptedException {
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        return source.poll();
+      } catch (IOException e) {
+        if (stopped.get() || attempt >= MAX_RETRIES) throw e;
+        Log.w(TAG, "retry playlist of " + output, e);
+      }
+      // stop() ends the wait, the loop then sees it is stopped
+      if (stopSignal.await(RETRY_DELAY * attempt, TimeUnit.MILLISECONDS)) {
+        return Collections.emptyList();
+      }
+    }
+  }
+
+  private byte[] fetch(Segment segment) throws Exception {
+    String url = segment.url;
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        return get(url);
+      } catch (IOException e) {
+        if (stopped.get() || attempt >= MAX_RETRIES) throw e;
+        if (e instanceof HttpStatusException
+            && SegmentedFileDownloader.isExpired((HttpStatusException) e)) {
+          String fresh = source.refresh(segment);
+          if (fresh == null) throw e;
+          url = fresh;
+        }
+        Log.w(TAG, "retry segment " + segment.sequence, e);
+      }
+      Thread.sleep(RETRY_DELAY * attempt);
+    }
+  }
+
+  private byte[] get(String url) throws IOException, InterruptedException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    connections.add(connection);
+    try {
+      int code = connection.getResponseCode();
+      if (code >= 400) throw new HttpStatusException(code, url);
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      byte[] buffer = new byte[64 * 1024];
+      try (InputStream in = connection.getInputStream()) {
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          governor.acquire(tag, read);
+          data.write(buffer, 0, read);
+          inFlight.addAndGet(read);
+        }
+      } catch (IOException | InterruptedException e) {
+        // the attempt is fetched again from the start, its bytes are not progress
+        inFlight.addAndGet(-data.size());
+        throw e;
+      }
+      return data.toByteArray();
+    } finally {
+      connections.remove(connection);
+      connection.disconnect();
+    }
+  }
+
+  // the bytes written plus those on their way, which a failed attempt gives back
+  private void reportProgress(long written) {
+    long now = System.currentTimeMillis();
+    if (now - lastReport < PROGRESS_INTERVAL) return;
+    long bytes = written + inFlight.get();
+    long speed =
+        lastReport > 0 ? Math.max(0, bytes - lastReportBytes) * 1000 / (now - lastReport) : 0;
+    lastReport = now;
+    lastReportBytes = bytes;
+    String message = String.format(Locale.US, "%d segments", segments);
+    long missed = source.getMissed();
+    // the live window moved past them during a stall, they cannot be fetched anymore
+    if (missed > 0) message += String.format(Locale.US, ", %d missed", missed);
+    callback.onProgress(bytes, -1, speed, message);
+  }
+
+  /**
+   * Drops the top-level ftyp and moov boxes of a segment that repeats its init segment. Data that
+   * does not parse as boxes is kept as it is.
+   */
+  static byte[] stripInit(byte[] data) {
+    ByteBuffer in = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+    int offset = 0;
+    while (offset + 8 <= data.length) {
+      long size = in.getInt(offset) & 0xffffffffL;
+      String type = new String(data, offset + 4, 4, StandardCharsets.ISO_8859_1);
+      if (size == 1 && offset + 16 <= data.length) size = in.getLong(offset + 8);
+      else if (size == 0) size = data.length - offset;
+      if (size < 8 || offset + size > data.length) return data;
+      if (!type.equals("ftyp") && !type.equals("moov")) out.write(data, offset, (int) size);
+      offset += (int) size;
+    }
+    return offset == data.length ? out.toByteArray() : data;
+  }
+
+  private static class Pending {
+    final Segment segment;
+    final Future<byte[]> future;
+
+    Pending(Segment segment, Future<byte[]> future) {
+      this.segment = segment;
+      this.future = future;
+    }
+  }
+}
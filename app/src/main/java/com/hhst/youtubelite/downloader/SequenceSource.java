@@ -0,0 +1,127 @@
+package com.hhst.youtubelite.downloader;
+
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.HttpStatusException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A DASH stream that YouTube serves by segment number through the {@code sq} parameter rather than
+ * by byte range, so it has no content length. Two kinds exist: OTF streams, whose init segment at
+ * {@code sq=0} states how many segments follow, and the recording of a live stream that has ended,
+ * whose every response names the last segment in {@code X-Head-Seqnum} and whose every segment
+ * carries its own init segment.
+ */
+class SequenceSource implements SegmentSource {
+
+  private static final Pattern SEGMENT_COUNT = Pattern.compile("Segment-Count: (\\d+)");
+  private static final String HEAD_SEQUENCE = "X-Head-Seqnum";
+  private static final int TIMEOUT = 15_000;
+
+  private final UrlRefresher refresher;
+  private String url;
+  private long next;
+  private boolean ended;
+  private boolean repeatsInit;
+
+  /**
+   * @param refresher resolves a fresh URL once the current one expires, may be null.
+   */
+  SequenceSource(String url, UrlRefresher refresher) {
+    this.url = url;
+    this.refresher = refresher;
+  }
+
+  // the segments are all known from the first response, so one poll returns them all
+  @Override
+  public List<Segment> poll() throws IOException {
+    List<Segment> segments = new ArrayList<>();
+    if (ended) return segments;
+    long last = probe();
+    for (long sequence = next; sequence <= last; ++sequence) {
+      segments.add(new Segment(sequence, getUrl(sequence)));
+    }
+    next = last + 1;
+    ended = true;
+    return segments;
+  }
+
+  @Override
+  public boolean isEnded() {
+    return ended;
+  }
+
+  @Override
+  public long getPollInterval() {
+    return 0;
+  }
+
+  @Override
+  public void skipTo(long sequence) {
+    next = sequence;
+  }
+
+  @Override
+  public boolean repeatsInit() {
+    return repeatsInit;
+  }
+
+  @Override
+  public synchronized String refresh(Segment segment) throws Exception {
+    if (refresher == null) return null;
+    url = refresher.refresh(url);
+    return getUrl(segment.sequence);
+  }
+
+  /** Reads the number of the last segment off the first one. */
+  private long probe() throws IOException {
+    try {
+      return probe(getUrl(0));
+    } catch (HttpStatusException e) {
+      if (refresher == null || !SegmentedFileDownloader.isExpired(e)) throw e;
+      try {
+        return probe(refresh(new Segment(0, null)));
+      } catch (IOException | RuntimeException failure) {
+        throw failure;
+      } catch (Exception failure) {
+        throw new IOException("Failed to refresh the expired URL", failure);
+      }
+    }
+  }
+
+  private long probe(String segmentUrl) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(segmentUrl).openConnection();
+    connection.setConnectTimeout(TIMEOUT);
+    connection.setReadTimeout(TIMEOUT);
+    try {
+      int code = connection.getResponseCode();
+      if (code >= 400) throw new HttpStatusException(code, segmentUrl);
+      String head = connection.getHeaderField(HEAD_SEQUENCE);
+      if (head != null) {
+        repeatsInit = true;
+        return Long.parseLong(head.trim());
+      }
+      // the init segment of an OTF stream lists the segments as text
+      String init;
+      try (InputStream in = connection.getInputStream()) {
+        init = new String(IOUtils.toByteArray(in), StandardCharsets.ISO_8859_1);
+      }
+      Matcher matcher = SEGMENT_COUNT.matcher(init);
+      if (!matcher.find()) throw new IOException("No segment count in " + segmentUrl);
+      return Long.parseLong(matcher.group(1));
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private synchronized String getUrl(long sequence) {
+    return url + (url.contains("?") ? "&" : "?") + "sq=" + sequence;
+  }
+}
@@ -0,0 +1,93 @@
+package com.hhst.youtubelite.downloader;
+
+import com.google.gson.Gson;
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.HttpStatusException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Looks up the segments SponsorBlock users marked in a video, the ones {@code skip_sponsors.js}
+ * skips in the player. Like the script, it asks for every video whose hashed id starts with the
+ * same four characters, so the server does not learn which video is downloaded.
+ */
+class SponsorBlock {
+
+  static final String SPONSOR = "sponsor";
+  static final String SELF_PROMO = "selfpromo";
+  private static final String API_URL = "https://sponsor.ajay.app/api/skipSegments/";
+  private static final int TIMEOUT = 15_000;
+  private static final Gson gson = new Gson();
+
+  /**
+   * @param categories e.g. {@link #SPONSOR}.
+   * @return the segments to skip in milliseconds, empty if none are known.
+   */
+  static List<long[]> getSegments(String videoId, List<String> categories) throws IOException {
+    String url =
+        API_URL
+            + hashPrefix(videoId)
+            + "?service=YouTube&categories="
+            + URLEncoder.encode(gson.toJson(categories), "UTF-8");
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(TIMEOUT);
+    connection.setReadTimeout(TIMEOUT);
+    List<long[]> segments = new ArrayList<>();
+    try {
+      int code = connection.getResponseCode();
+      // no video with that prefix has segments
+      if (code == HttpURLConnection.HTTP_NOT_FOUND) return segments;
+      if (code >= 400) throw new HttpStatusException(code, url);
+      Video[] videos;
+      try (InputStream in = connection.getInputStream()) {
+        videos = gson.fromJson(IOUtils.toString(in, StandardCharsets.UTF_8), Video[].class);
+      }
+      if (videos == null) return segments;
+      for (Video video : videos) {
+        if (!videoId.equals(video.videoID) || video.segments == null) continue;
+        for (Segment segment : video.segments) {
+          // mute and full-video labels are not something to cut
+          if (segment.actionType != null && !segment.actionType.equals("skip")) continue;
+          if (segment.segment == null || segment.segment.length != 2) continue;
+          segments.add(
+              new long[] {
+                Math.round(segment.segment[0] * 1000), Math.round(segment.segment[1] * 1000)
+              });
+        }
+      }
+      return segments;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static String hashPrefix(String videoId) {
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-256").digest(videoId.getBytes(StandardCharsets.UTF_8));
+      return String.format(Locale.US, "%02x%02x", hash[0], hash[1]);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Video {
+    String videoID;
+    List<Segment> segments;
+  }
+
+  private static class Segment {
+    String actionType;
+    // start and end in seconds
+    double[] segment;
+  }
+}
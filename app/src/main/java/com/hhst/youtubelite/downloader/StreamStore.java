@@ -0,0 +1,224 @@
+package com.hhst.youtubelite.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Shares stream files between download tasks. Streams are keyed by their file, which callers name
+ * after the content (video id and itag), so a task asking for a stream that is already on disk or
+ * in flight attaches to that one transfer instead of fetching it again. The file and its journal
+ * are removed once the last task releases it.
+ */
+public class StreamStore {
+
+  private final AdvancedFileDownloader downloader;
+  // guarded by this
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  public StreamStore(AdvancedFileDownloader downloader) {
+    this.downloader = downloader;
+  }
+
+  /**
+   * Attaches a task to the stream written to {@code file}, starting the transfer if nobody is
+   * fetching it yet. The callback receives the events of the shared transfer; if the stream is
+   * already complete it is called back right away.
+   *
+   * @param tag the task that holds the stream until it calls {@link #release}.
+   */
+  public void acquire(
+      File file, String url, String tag, UrlRefresher refresher, ProgressCallback callback) {
+    acquire(file, url, null, tag, refresher, callback);
+  }
+
+  /**
+   * Like {@link #acquire(File, String, String, UrlRefresher, ProgressCallback)}, for a stream of
+   * which only some byte ranges are fetched.
+   *
+   * @param ranges see {@link AdvancedFileDownloader#download(String, List, File, ProgressCallback,
+   *     String, UrlRefresher)}, null for the whole stream.
+   */
+  public void acquire(
+      File file,
+      String url,
+      List<long[]> ranges,
+      String tag,
+      UrlRefresher refresher,
+      ProgressCallback callback) {
+    Entry entry;
+    boolean start = false;
+    boolean completed;
+    synchronized (this) {
+      entry = entries.get(file.getPath());
+      // a stream that is being stopped still has its channel open, wait for it to let go
+      while (entry != null && entry.stopping) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          callback.onCancel();
+          return;
+        }
+        entry = entries.get(file.getPath());
+      }
+      if (entry == null) {
+        entry = new Entry(file);
+        entries.put(file.getPath(), entry);
+        start = true;
+      }
+      entry.consumers.put(tag, callback);
+      completed = entry.completed;
+    }
+    if (start) {
+      // the task that started the transfer lends it its speed limit
+      BandwidthGovernor.getInstance().setOwner(entry.transferTag, tag);
+      downloader.download(url, ranges, file, entry, entry.transferTag, refresher);
+    } else if (completed) {
+      callback.onComplete(file);
+    }
+  }
+
+  /**
+   * Detaches a task from all its streams. Consumers still waiting for their stream are told it was
+   * cancelled; a stream nobody holds any more is stopped.
+   *
+   * @param keep whether a stream released by its last holder stays on disk to be resumed later.
+   */
+  public void release(String tag, boolean keep) {
+    List<ProgressCallback> cancelled = new ArrayList<>();
+    List<Entry> stopped = new ArrayList<>();
+    synchronized (this) {
+      for (Entry entry : new ArrayList<>(entries.values())) {
+        ProgressCallback callback = entry.consumers.remove(tag);
+        if (callback == null) continue;
+        if (!entry.completed) cancelled.add(callback);
+        if (!entry.consumers.isEmpty()) continue;
+        if (entry.completed) {
+          entries.remove(entry.file.getPath());
+          BandwidthGovernor.getInstance().removeOwner(entry.transferTag);
+          if (!keep) delete(entry.file);
+        } else {
+          entry.stopping = true;
+          entry.keep = keep;
+          stopped.add(entry);
+        }
+      }
+    }
+    stopped.forEach(entry -> downloader.cancel(entry.transferTag));
+    cancelled.forEach(ProgressCallback::onCancel);
+  }
+
+  /**
+   * Hands a completed stream over as a finished output. The file is renamed when the task is its
+   * last holder, otherwise hard linked, or copied where the file system has no hard links. The task
+   * no longer holds the stream afterwards.
+   */
+  public void publish(File file, String tag, File target) throws IOException {
+    boolean last;
+    synchronized (this) {
+      Entry entry = entries.get(file.getPath());
+      last = entry != null && entry.consumers.size() == 1 && entry.consumers.containsKey(tag);
+      if (last) {
+        entries.remove(file.getPath());
+        BandwidthGovernor.getInstance().removeOwner(entry.transferTag);
+      }
+    }
+    if (last) {
+      Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      FileUtils.deleteQuietly(SegmentJournal.journalFile(file));
+      return;
+    }
+    try {
+      Files.createLink(target.toPath(), file.toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(file.toPath(), target.toPath());
+    }
+    release(tag, false);
+  }
+
+  private static void delete(File file) {
+    FileUtils.deleteQuietly(file);
+    FileUtils.deleteQuietly(SegmentJournal.journalFile(file));
+  }
+
+  private synchronized List<ProgressCallback> consumers(Entry entry) {
+    return new ArrayList<>(entry.consumers.values());
+  }
+
+  private synchronized List<ProgressCallback> complete(Entry entry) {
+    // under the lock, so a task attaching now is either in this list or sees completed
+    entry.completed = true;
+    return consumers(entry);
+  }
+
+  // called once the transfer of an entry has ended for good
+  private synchronized void remove(Entry entry) {
+    if (entries.remove(entry.file.getPath(), entry)) {
+      BandwidthGovernor.getInstance().removeOwner(entry.transferTag);
+    }
+    if (entry.stopping && !entry.keep) delete(entry.file);
+    notifyAll();
+  }
+
+  /** One shared transfer, fanning its events out to every task attached to it. */
+  private class Entry implements ProgressCallback {
+    final File file;
+    final String transferTag;
+    final Map<String, ProgressCallback> consumers = new LinkedHashMap<>();
+    boolean completed;
+    boolean stopping;
+    boolean keep;
+
+    Entry(File file) {
+      this.file = file;
+      this.transferTag = "StreamStore#" + file.getName();
+    }
+
+    @Override
+    public void onProgress(long downloaded, long total, long speed, String message) {
+      for (ProgressCallback callback : consumers(this)) {
+        callback.onProgress(downloaded, total, speed, message);
+      }
+    }
+
+    @Override
+    public void onAvailable(long bytes) {
+      for (ProgressCallback callback : consumers(this)) {
+        callback.onAvailable(bytes);
+      }
+    }
+
+    @Override
+    public void onComplete(File file) {
+      for (ProgressCallback callback : complete(this)) {
+        callback.onComplete(file);
+      }
+    }
+
+    @Override
+    public void onError(Exception error) {
+      List<ProgressCallback> callbacks = consumers(this);
+      remove(this);
+      for (ProgressCallback callback : callbacks) {
+        callback.onError(error);
+      }
+    }
+
+    @Override
+    public void onCancel() {
+      // only the store cancels its transfers, once nobody is attached
+      remove(this);
+    }
+
+    @Override
+    public void onMerge() {}
+  }
+}
@@ -0,0 +1,758 @@
+package com.hhst.youtubelite.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Muxes a video and an audio MP4 without holding samples in memory. Only the moov and moof boxes
+ * are parsed; the media data is moved into the output with {@link FileChannel#transferTo}, so heap
+ * usage stays flat regardless of the file size.
+ *
+ * <p>Fragmented inputs, which is what DASH streams are, produce a fragmented output whose fragments
+ * are interleaved by decode time. Plain inputs produce a single mdat with rebased 64-bit chunk
+ * offsets. Track IDs are renumbered and movie-timescale durations rescaled; media timescales, and
+ * with them every sample timestamp, are kept as they are.
+ *
+ * <p>Media is moved in chunks of {@link #TRANSFER_CHUNK}, reporting progress and checking for
+ * cancellation in between.
+ *
+ * <p>{@link #setCuts} leaves time ranges of fragmented inputs out, e.g. sponsor segments. The
+ * samples inside a cut are dropped from the runs of their fragments, the media bytes stay in the
+ * mdat unreferenced, and later fragments move back by the length of the cuts before them.
+ */
+public class StreamingMp4Muxer implements MediaMuxer {
+
+  private static final long MOVIE_TIMESCALE = 1000;
+  private static final int MDAT_HEADER_SIZE = 16;
+  private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+  private final MuxProgress progress = new MuxProgress();
+  // the time ranges left out, in milliseconds of the inputs, sorted
+  private List<long[]> cuts = List.of();
+
+  /**
+   * Leaves the media between each pair of times out of the output and closes the gaps. Video can
+   * only resume at the start of a fragment, so a cut ending inside a video fragment ends at its
+   * start instead, for both tracks. Only fragmented inputs can be cut.
+   *
+   * @param cuts sorted, non-overlapping ranges in milliseconds; {@link Long#MAX_VALUE} ends a
+   *     range at the end of the inputs.
+   */
+  public void setCuts(List<long[]> cuts) {
+    this.cuts = cuts;
+  }
+
+  @Override
+  public void merge(File videoFile, File audioFile, File outputFile, ProgressCallback callback)
+      throws IOException {
+    // the output is the inputs minus the boxes left out, close enough to show progress against
+    progress.start(callback, videoFile.length() + audioFile.length());
+    try (FileChannel video = FileChannel.open(videoFile.toPath(), StandardOpenOption.READ);
+        FileChannel audio = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ);
+        FileChannel out =
+            FileChannel.open(
+                outputFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+      Input[] inputs = {new Input(video, "vide", 1), new Input(audio, "soun", 2)};
+      if (inputs[0].track.fragmented && inputs[1].track.fragmented) {
+        if (!cuts.isEmpty()) cuts = alignCuts(cuts, inputs[0]);
+        writeFragmented(inputs, out);
+      } else if (!cuts.isEmpty()) {
+        throw new UnsupportedLayoutException("Cannot cut a plain MP4");
+      } else if (!inputs[0].track.fragmented && !inputs[1].track.fragmented) {
+        writeProgressive(inputs, out);
+      } else {
+        throw new UnsupportedLayoutException("Cannot mux a fragmented with a plain MP4");
+      }
+    }
+  }
+
+  /** Writes the cut audio of a fragmented MP4 on its own, for an audio-only download. */
+  public void trim(File audioFile, File outputFile, ProgressCallback callback) throws IOException {
+    progress.start(callback, audioFile.length());
+    try (FileChannel audio = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ);
+        FileChannel out =
+            FileChannel.open(
+                outputFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+      Input[] inputs = {new Input(audio, "soun", 1)};
+      if (!inputs[0].track.fragmented) {
+        throw new UnsupportedLayoutException("Cannot cut a plain MP4");
+      }
+      writeFragmented(inputs, out);
+    }
+  }
+
+  @Override
+  public void cancel() {
+    progress.cancel();
+  }
+
+  private void writeFragmented(Input[] inputs, FileChannel out) throws IOException {
+    long duration = 0;
+    for (Input input : inputs) {
+      if (!cuts.isEmpty()) {
+        long timescale = input.track.mediaTimescale;
+        input.track.setMediaDuration(shift(input.getMediaDuration(), timescale));
+      }
+      duration = Math.max(duration, input.track.duration);
+    }
+    long position = write(out, ftyp("iso6"), 0, progress);
+    position = write(out, fragmentedMoov(tracks(inputs), duration), position, progress);
+    // interleave by decode time, so players never have to jump far between the two tracks
+    int[] next = new int[inputs.length];
+    int sequence = 0;
+    while (true) {
+      Input input = null;
+      Fragment fragment = null;
+      for (int i = 0; i < inputs.length; ++i) {
+        if (next[i] >= inputs[i].fragments.size()) continue;
+        Fragment candidate = inputs[i].fragments.get(next[i]);
+        if (fragment == null || candidate.isBefore(inputs[i].track, fragment, input.track)) {
+          input = inputs[i];
+          fragment = candidate;
+        }
+      }
+      if (fragment == null) break;
+      ++next[input.track.trackId - 1];
+      Mp4Box moof = Mp4Box.read(input.channel, fragment.moof);
+      if (!cuts.isEmpty() && !cut(moof, fragment, input.track)) continue;
+      position =
+          copyFragment(
+              input.channel, fragment, moof, input.track, ++sequence, out, position, progress);
+    }
+  }
+
+  /**
+   * Drops the samples of a fragment inside a cut and moves the fragment back by the cuts before
+   * it. A fragment keeps its first run of samples outside the cuts; the rest of it is lost if a cut
+   * lies within it, which only happens to audio with a cut shorter than one of its fragments.
+   *
+   * @return false if no sample is left.
+   */
+  private boolean cut(Mp4Box moof, Fragment fragment, Track track) throws IOException {
+    Mp4Box traf = moof.child("traf");
+    long[] durations = track.sampleDurations(traf);
+    int first = -1;
+    int last = durations.length;
+    long start = 0;
+    long time = fragment.decodeTime;
+    for (int i = 0; i < durations.length; ++i) {
+      boolean inside = isCut(time, track.mediaTimescale);
+      if (!inside && first < 0) {
+        first = i;
+        start = time;
+      } else if (inside && first >= 0) {
+        last = i;
+        break;
+      }
+      time += durations[i];
+    }
+    if (first < 0) return false;
+    if (first > 0 || last < durations.length) dropSamples(traf, track, first, last);
+    Mp4Box tfdt = traf.child("tfdt");
+    if (tfdt == null) throw new UnsupportedLayoutException("Fragment without tfdt");
+    long decodeTime = shift(start, track.mediaTimescale);
+    if (tfdt.version() == 1) {
+      tfdt.payload.putLong(4, decodeTime);
+    } else {
+      tfdt.payload.putInt(4, (int) decodeTime);
+    }
+    return true;
+  }
+
+  /**
+   * Removes the samples before {@code first} and from {@code last} on from the run of a fragment.
+   * The run shrinks, so its data offset moves back by that and on by the bytes of the samples
+   * dropped in front.
+   */
+  private static void dropSamples(Mp4Box traf, Track track, int first, int last)
+      throws UnsupportedLayoutException {
+    List<Mp4Box> truns = traf.children("trun");
+    Mp4Box trun = truns.size() == 1 ? truns.get(0) : null;
+    if (trun == null || (trun.flags() & 0x1) == 0) {
+      throw new UnsupportedLayoutException("Cannot cut a fragment without one data offset");
+    }
+    int flags = trun.flags();
+    int header = 12 + ((flags & 0x4) != 0 ? 4 : 0);
+    int stride = Integer.bitCount(flags & 0xF00) * 4;
+    long[] sizes = track.sampleSizes(traf);
+    long skipped = 0;
+    for (int i = 0; i < first; ++i) {
+      skipped += sizes[i];
+    }
+    int count = last - first;
+    ByteBuffer payload = ByteBuffer.allocate(header + count * stride);
+    ByteBuffer fields = trun.payload.duplicate();
+    fields.limit(header);
+    payload.put(fields);
+    ByteBuffer entries = trun.payload.duplicate();
+    entries.limit(header + last * stride);
+    entries.position(header + first * stride);
+    payload.put(entries);
+    payload.flip();
+    payload.putInt(4, count);
+    long removed = trun.payload.limit() - payload.limit();
+    payload.putInt(8, (int) (trun.payload.getInt(8) + skipped - removed));
+    traf.replace(trun, new Mp4Box("trun", payload));
+  }
+
+  /**
+   * Ends every cut that ends inside a fragment of the video at the start of that fragment, where
+   * the next keyframe is. A cut left empty by that is dropped.
+   */
+  private static List<long[]> alignCuts(List<long[]> cuts, Input video) {
+    long timescale = video.track.mediaTimescale;
+    List<long[]> aligned = new ArrayList<>();
+    for (long[] range : cuts) {
+      long end = range[1];
+      if (end != Long.MAX_VALUE) {
+        long time = ticks(end, timescale);
+        for (Fragment fragment : video.fragments) {
+          if (fragment.decodeTime < time && time < fragment.decodeTime + fragment.duration) {
+            // rounded down, so the keyframe never counts as cut
+            end = fragment.decodeTime * 1000 / timescale;
+            break;
+          }
+        }
+      }
+      if (end > range[0]) aligned.add(new long[] {range[0], end});
+    }
+    return aligned;
+  }
+
+  // moves a time in a media timescale back by the length of the cuts before it
+  private long shift(long time, long timescale) {
+    long shifted = time;
+    for (long[] range : cuts) {
+      long start = ticks(range[0], timescale);
+      if (start >= time) break;
+      shifted -= Math.min(time, ticks(range[1], timescale)) - start;
+    }
+    return shifted;
+  }
+
+  private boolean isCut(long time, long timescale) {
+    for (long[] range : cuts) {
+      if (time >= ticks(range[0], timescale) && time < ticks(range[1], timescale)) return true;
+    }
+    return false;
+  }
+
+  private static long ticks(long millis, long timescale) {
+    return millis == Long.MAX_VALUE ? Long.MAX_VALUE : millis * timescale / 1000;
+  }
+
+  private void writeProgressive(Input[] inputs, FileChannel out) throws IOException {
+    List<long[]> offsets = new ArrayList<>();
+    List<Mp4Box> co64s = new ArrayList<>();
+    long duration = 0;
+    for (Input input : inputs) {
+      // chunk offsets are always written as co64, so the moov size does not depend on them
+      Mp4Box stbl = input.track.trak.find("mdia/minf/stbl");
+      Mp4Box stco = stbl.child("stco");
+      Mp4Box old = stco != null ? stco : stbl.child("co64");
+      if (old == null) throw new UnsupportedLayoutException("Track without chunk offsets");
+      long[] chunkOffsets = readChunkOffsets(old);
+      Mp4Box co64 = new Mp4Box("co64", ByteBuffer.allocate(8 + chunkOffsets.length * 8));
+      co64.payload.putInt(4, chunkOffsets.length);
+      stbl.replace(old, co64);
+      offsets.add(chunkOffsets);
+      co64s.add(co64);
+      duration = Math.max(duration, input.track.duration);
+    }
+    List<Mp4Box> boxes = new ArrayList<>();
+    boxes.add(mvhd(duration, inputs.length + 1));
+    for (Track track : tracks(inputs)) {
+      boxes.add(track.trak);
+    }
+    Mp4Box moov = Mp4Box.container("moov", boxes.toArray(new Mp4Box[0]));
+    Mp4Box ftyp = ftyp("iso2");
+
+    // lay the media of each input out one after the other in a single mdat
+    long payloadStart = ftyp.size() + moov.size() + MDAT_HEADER_SIZE;
+    long target = payloadStart;
+    for (int i = 0; i < inputs.length; ++i) {
+      long[] chunkOffsets = offsets.get(i);
+      for (int j = 0; j < chunkOffsets.length; ++j) {
+        co64s.get(i).payload.putLong(8 + j * 8, inputs[i].rebase(chunkOffsets[j], target));
+      }
+      target += inputs[i].mediaSize();
+    }
+
+    long position = write(out, ftyp, 0, progress);
+    position = write(out, moov, position, progress);
+    ByteBuffer header = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+    header.putInt(1).put("mdat".getBytes(StandardCharsets.US_ASCII));
+    header.putLong(target - payloadStart + MDAT_HEADER_SIZE);
+    header.flip();
+    position = write(out, header, position, progress);
+    for (Input input : inputs) {
+      for (Mp4Box.Header mdat : input.mdats) {
+        long length = mdat.size - mdat.headerSize;
+        transfer(input.channel, mdat.offset + mdat.headerSize, length, out, position, progress);
+        position += length;
+      }
+    }
+  }
+
+  private static List<Track> tracks(Input[] inputs) {
+    List<Track> tracks = new ArrayList<>();
+    for (Input input : inputs) {
+      tracks.add(input.track);
+    }
+    return tracks;
+  }
+
+  private static long[] readChunkOffsets(Mp4Box box) {
+    boolean wide = box.type.equals("co64");
+    int count = box.payload.getInt(4);
+    long[] offsets = new long[count];
+    for (int i = 0; i < count; ++i) {
+      offsets[i] =
+          wide ? box.payload.getLong(8 + i * 8) : box.payload.getInt(8 + i * 4) & 0xFFFFFFFFL;
+    }
+    return offsets;
+  }
+
+  static Mp4Box ftyp(String brand) {
+    String[] compatible = {"isom", brand, "mp41"};
+    ByteBuffer payload = ByteBuffer.allocate(8 + compatible.length * 4);
+    payload.put("isom".getBytes(StandardCharsets.US_ASCII)).putInt(0x200);
+    for (String type : compatible) {
+      payload.put(type.getBytes(StandardCharsets.US_ASCII));
+    }
+    payload.flip();
+    return new Mp4Box("ftyp", payload);
+  }
+
+  /**
+   * The moov of a fragmented output. Every box in it has a fixed size, so it can be written before
+   * the duration is known and overwritten in place afterwards.
+   */
+  static Mp4Box fragmentedMoov(List<Track> tracks, long duration) {
+    Mp4Box moov = Mp4Box.container("moov", mvhd(duration, tracks.size() + 1));
+    Mp4Box mvex = Mp4Box.container("mvex", mehd(duration));
+    for (Track track : tracks) {
+      moov.children.add(track.trak);
+      mvex.children.add(track.trex);
+    }
+    moov.children.add(mvex);
+    return moov;
+  }
+
+  private static Mp4Box mvhd(long duration, int nextTrackId) {
+    ByteBuffer payload = ByteBuffer.allocate(112);
+    payload.putInt(0x01000000); // version 1, 64-bit times
+    payload.putLong(0).putLong(0).putInt((int) MOVIE_TIMESCALE).putLong(duration);
+    payload.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+    putUnityMatrix(payload);
+    payload.put(new byte[24]).putInt(nextTrackId);
+    payload.flip();
+    return new Mp4Box("mvhd", payload);
+  }
+
+  private static Mp4Box mehd(long duration) {
+    ByteBuffer payload = ByteBuffer.allocate(12);
+    payload.putInt(0x01000000).putLong(duration);
+    payload.flip();
+    return new Mp4Box("mehd", payload);
+  }
+
+  private static void putUnityMatrix(ByteBuffer payload) {
+    payload.putInt(0x00010000).putInt(0).putInt(0);
+    payload.putInt(0).putInt(0x00010000).putInt(0);
+    payload.putInt(0).putInt(0).putInt(0x40000000);
+  }
+
+  /**
+   * Copies a fragment to {@code position} of the output, renumbered for the output track and
+   * sequence.
+   *
+   * @return the position behind the fragment.
+   */
+  static long copyFragment(
+      FileChannel source,
+      Fragment fragment,
+      Track track,
+      int sequence,
+      FileChannel out,
+      long position,
+      MuxProgress progress)
+      throws IOException {
+    Mp4Box moof = Mp4Box.read(source, fragment.moof);
+    return copyFragment(source, fragment, moof, track, sequence, out, position, progress);
+  }
+
+  private static long copyFragment(
+      FileChannel source,
+      Fragment fragment,
+      Mp4Box moof,
+      Track track,
+      int sequence,
+      FileChannel out,
+      long position,
+      MuxProgress progress)
+      throws IOException {
+    moof.child("mfhd").payload.putInt(4, sequence);
+    Mp4Box tfhd = moof.find("traf/tfhd");
+    tfhd.payload.putInt(4, track.trackId);
+    if ((tfhd.flags() & 0x1) != 0) {
+      // an absolute base offset moves with the fragment, relative ones stay valid
+      tfhd.payload.putLong(8, tfhd.payload.getLong(8) + position - fragment.moof.offset);
+    }
+    position = write(out, moof, position, progress);
+    long length = fragment.end - fragment.moof.end();
+    transfer(source, fragment.moof.end(), length, out, position, progress);
+    return position + length;
+  }
+
+  static long write(FileChannel out, Mp4Box box, long position, MuxProgress progress)
+      throws IOException {
+    return write(out, box.toBuffer(), position, progress);
+  }
+
+  private static long write(FileChannel out, ByteBuffer buffer, long position, MuxProgress progress)
+      throws IOException {
+    long start = position;
+    while (buffer.hasRemaining()) {
+      position += out.write(buffer, position);
+    }
+    progress.advance(position - start);
+    return position;
+  }
+
+  private static void transfer(
+      FileChannel source,
+      long offset,
+      long length,
+      FileChannel out,
+      long position,
+      MuxProgress progress)
+      throws IOException {
+    // transferTo only appends at the channel position
+    out.position(position);
+    long done = 0;
+    while (done < length) {
+      long moved =
+          source.transferTo(offset + done, Math.min(length - done, TRANSFER_CHUNK), out);
+      if (moved <= 0) throw new IOException("Source ended early at " + (offset + done));
+      done += moved;
+      progress.advance(moved);
+    }
+  }
+
+  private static long rescale(long value, long from, long to) {
+    return from > 0 ? value * to / from : value;
+  }
+
+  /** One input file and the track taken from it. */
+  private static class Input {
+    final FileChannel channel;
+    final Track track;
+    final List<Mp4Box.Header> mdats = new ArrayList<>();
+    final List<Fragment> fragments = new ArrayList<>();
+
+    Input(FileChannel channel, String handler, int trackId) throws IOException {
+      this.channel = channel;
+      List<Mp4Box.Header> headers = Mp4Box.scan(channel);
+      Mp4Box moov = null;
+      for (Mp4Box.Header header : headers) {
+        if (header.type.equals("moov")) {
+          moov = Mp4Box.read(channel, header);
+        } else if (header.type.equals("mdat")) {
+          mdats.add(header);
+        }
+      }
+      if (moov == null) throw new UnsupportedLayoutException("No moov box");
+      track = new Track(moov, handler, trackId);
+      if (track.fragmented) {
+        scanFragments(headers);
+        track.setMediaDuration(getMediaDuration());
+      }
+    }
+
+    // where the last fragment ends, in the media timescale
+    long getMediaDuration() {
+      long mediaDuration = 0;
+      for (Fragment fragment : fragments) {
+        mediaDuration = Math.max(mediaDuration, fragment.decodeTime + fragment.duration);
+      }
+      return mediaDuration;
+    }
+
+    private void scanFragments(List<Mp4Box.Header> headers) throws IOException {
+      long decodeTime = 0;
+      for (int i = 0; i < headers.size(); ++i) {
+        Mp4Box.Header header = headers.get(i);
+        if (!header.type.equals("moof")) continue;
+        // the fragment's media is the run of mdat boxes right behind its moof
+        long end = header.end();
+        while (i + 1 < headers.size() && headers.get(i + 1).type.equals("mdat")) {
+          end = headers.get(++i).end();
+        }
+        Fragment fragment = track.fragment(Mp4Box.read(channel, header), header, end, decodeTime);
+        fragments.add(fragment);
+        decodeTime = fragment.decodeTime + fragment.duration;
+      }
+    }
+
+    /** Maps an offset into one of this input's mdat boxes to its place in the output. */
+    long rebase(long offset, long target) throws IOException {
+      for (Mp4Box.Header mdat : mdats) {
+        long start = mdat.offset + mdat.headerSize;
+        if (offset >= start && offset < mdat.end()) {
+          return target + offset - start;
+        }
+        target += mdat.size - mdat.headerSize;
+      }
+      throw new UnsupportedLayoutException("Chunk offset " + offset + " outside of mdat");
+    }
+
+    long mediaSize() {
+      long size = 0;
+      for (Mp4Box.Header mdat : mdats) {
+        size += mdat.size - mdat.headerSize;
+      }
+      return size;
+    }
+  }
+
+  /**
+   * The track taken from an input's moov, renumbered for the output. References to other tracks
+   * are dropped and the movie-timescale durations rescaled.
+   */
+  static class Track {
+    final int trackId;
+    final Mp4Box trak;
+    final boolean fragmented;
+    final long mediaTimescale;
+    // in the output movie timescale
+    long duration;
+    Mp4Box trex;
+    private Mp4Box tkhd;
+
+    Track(Mp4Box moov, String handler, int trackId) throws IOException {
+      this.trackId = trackId;
+      Mp4Box track = null;
+      for (Mp4Box candidate : moov.children("trak")) {
+        Mp4Box hdlr = candidate.find("mdia/hdlr");
+        if (hdlr != null && handler.equals(fourCc(hdlr.payload, 8))) {
+          track = candidate;
+          break;
+        }
+      }
+      if (track == null) throw new MediaMuxerImpl.EmptyTrackException();
+      trak = track;
+      fragmented = moov.child("mvex") != null;
+      Mp4Box mvhd = moov.child("mvhd");
+      Mp4Box mdhd = trak.find("mdia/mdhd");
+      if (mvhd == null || mdhd == null) throw new UnsupportedLayoutException("No mvhd or mdhd");
+      long movieTimescale = mvhd.payload.getInt(mvhd.version() == 1 ? 20 : 12) & 0xFFFFFFFFL;
+      mediaTimescale = mdhd.payload.getInt(mdhd.version() == 1 ? 20 : 12) & 0xFFFFFFFFL;
+
+      tkhd = trak.child("tkhd");
+      int sourceId = tkhd.payload.getInt(tkhd.version() == 1 ? 20 : 12);
+      if (fragmented) {
+        trex = findTrex(moov.child("mvex"), sourceId);
+      } else {
+        long sourceDuration =
+            tkhd.version() == 1
+                ? tkhd.payload.getLong(28)
+                : tkhd.payload.getInt(20) & 0xFFFFFFFFL;
+        duration = rescale(sourceDuration, movieTimescale, MOVIE_TIMESCALE);
+      }
+
+      // the references would point at track IDs that no longer exist
+      trak.children.removeIf(box -> box.type.equals("tref"));
+      setDuration(duration);
+      Mp4Box elst = trak.find("edts/elst");
+      if (elst != null) {
+        rescaleEditList(elst, movieTimescale);
+      }
+    }
+
+    /** Sets the duration of a fragmented track from the end of its last fragment. */
+    void setMediaDuration(long mediaDuration) {
+      setDuration(rescale(mediaDuration, mediaTimescale, MOVIE_TIMESCALE));
+    }
+
+    private void setDuration(long duration) {
+      this.duration = duration;
+      Mp4Box replacement = tkhd(tkhd, trackId, duration);
+      trak.replace(tkhd, replacement);
+      tkhd = replacement;
+    }
+
+    private Mp4Box findTrex(Mp4Box mvex, int sourceId) {
+      Mp4Box found = null;
+      for (Mp4Box box : mvex.children("trex")) {
+        if (box.payload.getInt(4) == sourceId) found = box;
+      }
+      if (found == null) {
+        found = new Mp4Box("trex", ByteBuffer.allocate(24));
+        found.payload.putInt(8, 1);
+      }
+      found.payload.putInt(4, trackId);
+      return found;
+    }
+
+    /**
+     * Describes the fragment made of a moof and the media behind it up to {@code end}.
+     *
+     * @param decodeTime where the previous fragment ended, used when the moof has no tfdt.
+     */
+    Fragment fragment(Mp4Box moof, Mp4Box.Header header, long end, long decodeTime)
+        throws UnsupportedLayoutException {
+      List<Mp4Box> trafs = moof.children("traf");
+      if (trafs.size() != 1) {
+        throw new UnsupportedLayoutException("Fragment with " + trafs.size() + " tracks");
+      }
+      Mp4Box traf = trafs.get(0);
+      Mp4Box tfdt = traf.child("tfdt");
+      if (tfdt != null) {
+        decodeTime =
+            tfdt.version() == 1 ? tfdt.payload.getLong(4) : tfdt.payload.getInt(4) & 0xFFFFFFFFL;
+      }
+      return new Fragment(header, end, decodeTime, sampleDuration(traf));
+    }
+
+    private long sampleDuration(Mp4Box traf) {
+      long total = 0;
+      for (long duration : sampleDurations(traf)) {
+        total += duration;
+      }
+      return total;
+    }
+
+    /** The duration of each sample of a fragment, in decode order. */
+    long[] sampleDurations(Mp4Box traf) {
+      return sampleValues(traf, 0x100, 0x8, 12);
+    }
+
+    /** The size in bytes of each sample of a fragment, in decode order. */
+    long[] sampleSizes(Mp4Box traf) {
+      return sampleValues(traf, 0x200, 0x10, 16);
+    }
+
+    /**
+     * Reads a per-sample field of the runs of a fragment, falling back to the tfhd and then the
+     * trex default where a run leaves it out.
+     *
+     * @param sampleFlag the trun flag of the field, 0x100 for durations or 0x200 for sizes.
+     * @param defaultFlag the tfhd flag of its default, 0x8 or 0x10.
+     * @param trexField where the trex keeps its default.
+     */
+    private long[] sampleValues(Mp4Box traf, int sampleFlag, int defaultFlag, int trexField) {
+      Mp4Box tfhd = traf.child("tfhd");
+      long defaultValue = trex.payload.getInt(trexField) & 0xFFFFFFFFL;
+      int flags = tfhd.flags();
+      if ((flags & defaultFlag) != 0) {
+        // the optional tfhd fields come in the order of their flags
+        int field = 8 + ((flags & 0x1) != 0 ? 8 : 0);
+        for (int flag = 0x2; flag < defaultFlag; flag <<= 1) {
+          if ((flags & flag) != 0) field += 4;
+        }
+        defaultValue = tfhd.payload.getInt(field) & 0xFFFFFFFFL;
+      }
+      int total = 0;
+      for (Mp4Box trun : traf.children("trun")) {
+        total += trun.payload.getInt(4);
+      }
+      long[] values = new long[total];
+      int index = 0;
+      for (Mp4Box trun : traf.children("trun")) {
+        int trunFlags = trun.flags();
+        int count = trun.payload.getInt(4);
+        // the per-sample fields also come in the order of their flags
+        int field = 8 + ((trunFlags & 0x1) != 0 ? 4 : 0) + ((trunFlags & 0x4) != 0 ? 4 : 0);
+        field += Integer.bitCount(trunFlags & (sampleFlag - 1) & 0xF00) * 4;
+        int stride = Integer.bitCount(trunFlags & 0xF00) * 4;
+        for (int i = 0; i < count; ++i) {
+          values[index++] =
+              (trunFlags & sampleFlag) != 0
+                  ? trun.payload.getInt(field + i * stride) & 0xFFFFFFFFL
+                  : defaultValue;
+        }
+      }
+      return values;
+    }
+
+    private void rescaleEditList(Mp4Box elst, long movieTimescale) {
+      boolean wide = elst.version() == 1;
+      int count = elst.payload.getInt(4);
+      int entrySize = wide ? 20 : 12;
+      for (int i = 0; i < count; ++i) {
+        int field = 8 + i * entrySize;
+        if (wide) {
+          long value = elst.payload.getLong(field);
+          elst.payload.putLong(field, rescale(value, movieTimescale, MOVIE_TIMESCALE));
+        } else {
+          long value = elst.payload.getInt(field) & 0xFFFFFFFFL;
+          elst.payload.putInt(field, (int) rescale(value, movieTimescale, MOVIE_TIMESCALE));
+        }
+      }
+    }
+  }
+
+  // version 1 tkhd with the new track ID and duration, everything else copied
+  private static Mp4Box tkhd(Mp4Box old, int trackId, long duration) {
+    boolean wide = old.version() == 1;
+    ByteBuffer payload = ByteBuffer.allocate(96);
+    payload.putInt(0x01000000 | old.flags());
+    payload.putLong(wide ? old.payload.getLong(4) : old.payload.getInt(4) & 0xFFFFFFFFL);
+    payload.putLong(wide ? old.payload.getLong(12) : old.payload.getInt(8) & 0xFFFFFFFFL);
+    payload.putInt(trackId).putInt(0).putLong(duration);
+    ByteBuffer rest = old.payload.duplicate();
+    rest.position(wide ? 36 : 24);
+    payload.put(rest);
+    payload.flip();
+    return new Mp4Box("tkhd", payload);
+  }
+
+  static String fourCc(ByteBuffer buffer, int index) {
+    byte[] bytes = new byte[4];
+    for (int i = 0; i < 4; ++i) {
+      bytes[i] = buffer.get(index + i);
+    }
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  /** A moof box and the media data that follows it. */
+  static class Fragment {
+    final Mp4Box.Header moof;
+    final long end;
+    // in the media timescale of the track
+    final long decodeTime;
+    final long duration;
+
+    Fragment(Mp4Box.Header moof, long end, long decodeTime, long duration) {
+      this.moof = moof;
+      this.end = end;
+      this.decodeTime = decodeTime;
+      this.duration = duration;
+    }
+
+    // compares decode times across the timescales of two tracks
+    boolean isBefore(Track track, Fragment other, Track otherTrack) {
+      return decodeTime * otherTrack.mediaTimescale < other.decodeTime * track.mediaTimescale;
+    }
+  }
+
+  /** The inputs use a box layout this muxer does not handle. */
+  public static class UnsupportedLayoutException extends IOException {
+    public UnsupportedLayoutException(String message) {
+      super(message);
+    }
+  }
+}
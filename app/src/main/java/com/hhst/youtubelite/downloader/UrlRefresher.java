@@ -0,0 +1,11 @@
+package com.hhst.youtubelite.downloader;
+
+/** Resolves a fresh URL for the same content once the server rejects the current one as expired. */
+public interface UrlRefresher {
+
+  /**
+   * @param expiredUrl the URL the server answered 403/410 for.
+   * @return a URL for the same bytes, so the download continues from its current offsets.
+   */
+  String refresh(String expiredUrl) throws Exception;
+}
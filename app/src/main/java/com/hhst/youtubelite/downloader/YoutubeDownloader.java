@@ -2,146 +2,278 @@ package com.hhst.youtubelite.downloader;
 
 import android.content.Context;
 import com.hhst.youtubelite.R;
+import com.hhst.youtubelite.common.YoutubeExtractor;
+import com.hhst.youtubelite.downloader.SegmentedFileDownloader.InsufficientSpaceException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.DeliveryMethod;
+import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
 
 /* the main class for download video and audio */
 public class YoutubeDownloader {
 
-  private static final AdvancedFileDownloader downloader = new MultiThreadFileDownloader();
+  private static final AdvancedFileDownloader downloader = new SegmentedFileDownloader();
+  // the video task and the audio-only task of one video fetch the audio stream once
+  private static final StreamStore store = new StreamStore(downloader);
 
-  // Flag whether the task is cancelled
-  private static final Map<String, Boolean> cancelledTasks = new ConcurrentHashMap<>();
+  // the cancel flag of each running task, dropped once the task reports its outcome
+  private static final Map<String, AtomicBoolean> cancelFlags = new ConcurrentHashMap<>();
+  // the merge each task is running, so cancelling reaches it mid-merge
+  private static final Map<String, MediaMuxer> muxers = new ConcurrentHashMap<>();
+  // streams served by segment number, and live streams, are recorded outside the store
+  private static final Map<String, Set<SegmentedStreamDownloader>> recorders =
+      new ConcurrentHashMap<>();
+  private static final ExecutorService recording =
+      Executors.newCachedThreadPool(DownloadPipeline.networkThreads());
 
+  /**
+   * @param videoUrl the watch page the streams were extracted from, used to look up fresh stream
+   *     URLs when the current ones expire mid-download.
+   * @param clip the planned time range to download, null for the whole video.
+   */
   public static void download(
       String tag,
+      String videoUrl,
       VideoStream videoStream,
       AudioStream audioStream,
+      Clip clip,
       File output,
-      ProgressCallback callback,
+      ProgressCallback listener,
       Context context) {
 
-    // Download the video and audio streams
-    String baseName = FilenameUtils.getBaseName(output.getPath());
-    File tempDir = new File(context.getCacheDir(), baseName);
+    // Download the video and audio streams next to the output, so finishing is a rename on the
+    // same volume instead of copying the whole file out of the cache directory
     try {
-      FileUtils.forceMkdir(tempDir);
+      FileUtils.forceMkdir(output.getParentFile());
     } catch (IOException e) {
-      callback.onError(e);
+      listener.onError(e);
+      return;
+    }
+    // the stages below hold on to this flag rather than looking the tag up again
+    AtomicBoolean cancelled = new AtomicBoolean(false);
+    cancelFlags.put(tag, cancelled);
+    ProgressCallback callback = new ForgettingCallback(tag, cancelled, listener);
+    File videoFile = getStreamFile(output, videoUrl, videoStream, clip, "video");
+    File audioFile = getStreamFile(output, videoUrl, audioStream, clip, "audio");
+    long videoLength = videoStream != null ? getLength(videoStream, clip, true) : 0;
+    long audioLength = getLength(audioStream, clip, false);
+    // cut audio is written out once more without the cuts, like a merge
+    boolean merged = videoStream != null || clip != null && clip.isCut();
+    // fail now rather than with ENOSPC after hundreds of MB
+    long required =
+        getRequiredSpace(output, merged, videoLength, audioLength, videoFile, audioFile);
+    long usable = output.getParentFile().getUsableSpace();
+    if (required > usable) {
+      listener.onError(new InsufficientSpaceException(required, usable));
+      return;
     }
-    File videoFile = new File(tempDir, baseName + ".mp4");
-    File audioFile = new File(tempDir, baseName + ".m4a");
 
     if (videoStream != null) {
-      downloader.download(
-          videoStream.getContent(),
-          videoFile,
-          new ProgressCallback() {
-            @Override
-            public void onProgress(int progress, String message) {
-              callback.onProgress(progress, context.getString(R.string.downloading_video));
-            }
+      // Fetch both legs at the same time and merge once the slower one finishes
+      AtomicLongArray legDownloaded = new AtomicLongArray(2);
+      AtomicLongArray legTotal = new AtomicLongArray(new long[] {videoLength, audioLength});
+      AtomicLongArray legSpeed = new AtomicLongArray(2);
+      AtomicIntegerArray legFinished = new AtomicIntegerArray(2);
+      AtomicReferenceArray<String> legMessage = new AtomicReferenceArray<>(2);
+      AtomicInteger pendingLegs = new AtomicInteger(2);
+      AtomicBoolean terminated = new AtomicBoolean(false);
+      // muxes the legs into the merged part while they download, if they are fragmented MP4; the
+      // fragments of a clip are rebased first
+      LiveMp4Muxer live =
+          clip == null
+                  && !isSegmented(videoStream)
+                  && !isSegmented(audioStream)
+                  && new DownloadSettings().isMuxWhileDownloading()
+              ? new LiveMp4Muxer(videoFile, audioFile, getPartFile(output, null))
+              : null;
 
-            @Override
-            public void onComplete(File file) {
-              if (Boolean.TRUE.equals(cancelledTasks.getOrDefault(tag, false))) return;
-              // Download the audio stream
-              downloader.download(
-                  audioStream.getContent(),
-                  audioFile,
-                  new ProgressCallback() {
-                    @Override
-                    public void onProgress(int progress, String message) {
-                      callback.onProgress(progress, context.getString(R.string.downloading_audio));
-                    }
-
-                    @Override
-                    public void onComplete(File file) {
-                      // Merge the video and audio files
-                      try {
-                        // Create a temporary output file for better speed
-                        File tempOutput = new File(tempDir, baseName + "_merged.mp4");
-                        callback.onMerge();
-                        if (Boolean.TRUE.equals(cancelledTasks.getOrDefault(tag, false))) return;
-                        new MediaMuxerImpl().merge(videoFile, audioFile, tempOutput);
-                        if (Boolean.TRUE.equals(cancelledTasks.getOrDefault(tag, false))) return;
-                        // Move merged file to output
-                        if (output.exists()) {
-                          File availableFile = getAvailableFile(output);
-                          FileUtils.moveFile(tempOutput, availableFile);
-                          callback.onComplete(availableFile);
-                        } else {
-                          FileUtils.moveFile(tempOutput, output);
-                          callback.onComplete(output);
-                        }
+      Runnable reportProgress =
+          () -> {
+            // byte-weighted, the total stays unknown until both legs know theirs
+            long total =
+                legTotal.get(0) > 0 && legTotal.get(1) > 0 ? legTotal.get(0) + legTotal.get(1) : -1;
+            int leg = legFinished.get(0) == 0 ? 0 : 1;
+            callback.onProgress(
+                legDownloaded.get(0) + legDownloaded.get(1),
+                total,
+                legSpeed.get(0) + legSpeed.get(1),
+                withDetail(
+                    context.getString(
+                        leg == 0 ? R.string.downloading_video : R.string.downloading_audio),
+                    legMessage.get(leg)));
+          };
 
+      Runnable mergeStreams =
+          () -> {
+            // Merge the video and audio files
+            File mergedFile = getPartFile(output, null);
+            MediaMuxer muxer = getMuxer(clip);
+            muxers.put(tag, muxer);
+            try {
+              if (cancelled.get()) return;
+              if (clip != null && !clip.isCut()) Clip.rebase(videoFile, audioFile);
+              if (live == null || !live.finish()) {
+                // the bytes written arrive through onProgress while the task is merging
+                muxer.merge(videoFile, audioFile, mergedFile, callback);
+              }
+            } catch (CancellationException e) {
+              // cancel() has released the streams already, the muxer removed its partial output
+              FileUtils.deleteQuietly(mergedFile);
+              return;
+            } catch (IOException | RuntimeException e) {
+              // the task is dropped on error, nothing would resume from these; a muxer that fails
+              // unchecked, e.g. on an empty track, must not leave the task merging forever
+              FileUtils.deleteQuietly(mergedFile);
+              store.release(tag, false);
+              callback.onError(e);
+              return;
+            } finally {
+              muxers.remove(tag);
+            }
+            // hand over on the finish stage, so the next merge can start right away
+            DownloadPipeline.finish()
+                .execute(
+                    () -> {
+                      if (cancelled.get()) {
+                        FileUtils.deleteQuietly(mergedFile);
+                        return;
+                      }
+                      try {
+                        File file = publish(mergedFile, output);
+                        store.release(tag, false);
+                        callback.onComplete(file);
                       } catch (IOException e) {
+                        FileUtils.deleteQuietly(mergedFile);
+                        store.release(tag, false);
                         callback.onError(e);
                       }
-                    }
+                    });
+          };
 
-                    @Override
-                    public void onError(Exception error) {
-                      callback.onError(error);
-                    }
+      class LegCallback implements ProgressCallback {
+        private final int leg;
 
-                    @Override
-                    public void onCancel() {
-                      callback.onCancel();
-                    }
+        LegCallback(int leg) {
+          this.leg = leg;
+        }
 
-                    @Override
-                    public void onMerge() {}
-                  });
-            }
+        @Override
+        public void onProgress(long downloaded, long total, long speed, String message) {
+          if (terminated.get()) return;
+          legDownloaded.set(leg, downloaded);
+          if (total > 0) legTotal.set(leg, total);
+          legSpeed.set(leg, speed);
+          legMessage.set(leg, message);
+          reportProgress.run();
+        }
 
-            @Override
-            public void onError(Exception error) {
-              callback.onError(error);
-            }
+        @Override
+        public void onAvailable(long bytes) {
+          if (live != null) live.onAvailable(leg, bytes);
+        }
 
-            @Override
-            public void onCancel() {
-              callback.onCancel();
-            }
+        @Override
+        public void onComplete(File file) {
+          if (terminated.get()) return;
+          legFinished.set(leg, 1);
+          legSpeed.set(leg, 0);
+          if (pendingLegs.decrementAndGet() > 0) return;
+          if (cancelled.get()) return;
+          // the task shows as merging while it waits for its turn on the mux stage
+          callback.onMerge();
+          DownloadPipeline.mux().execute(mergeStreams);
+        }
 
-            @Override
-            public void onMerge() {}
-          },
-          tag);
+        @Override
+        public void onError(Exception error) {
+          if (live != null) live.abort();
+          if (!terminated.compareAndSet(false, true)) return;
+          // stop the other leg, its onCancel is swallowed by the terminated flag
+          store.release(tag, false);
+          callback.onError(error);
+        }
+
+        @Override
+        public void onCancel() {
+          // a resumed task starts muxing over, from the parts kept on disk
+          if (live != null) live.abort();
+          if (!terminated.compareAndSet(false, true)) return;
+          callback.onCancel();
+        }
+
+        @Override
+        public void onMerge() {}
+      }
+
+      acquire(videoFile, videoUrl, videoStream, clip, true, tag, cancelled, new LegCallback(0));
+      acquire(audioFile, videoUrl, audioStream, clip, false, tag, cancelled, new LegCallback(1));
     } else {
-      downloader.download(
-          audioStream.getContent(),
+      acquire(
           audioFile,
+          videoUrl,
+          audioStream,
+          clip,
+          false,
+          tag,
+          cancelled,
           new ProgressCallback() {
             @Override
-            public void onProgress(int progress, String message) {
-              callback.onProgress(progress, context.getString(R.string.downloading_audio));
+            public void onProgress(long downloaded, long total, long speed, String message) {
+              callback.onProgress(
+                  downloaded,
+                  total,
+                  speed,
+                  withDetail(context.getString(R.string.downloading_audio), message));
             }
 
             @Override
             public void onComplete(File file) {
-              // Move audio file to output
-              try {
-                if (Boolean.TRUE.equals(cancelledTasks.getOrDefault(tag, false))) return;
-                if (output.exists()) {
-                  File availableFile = getAvailableFile(output);
-                  FileUtils.moveFile(audioFile, availableFile);
-                  callback.onComplete(availableFile);
-                } else {
-                  FileUtils.moveFile(audioFile, output);
-                  callback.onComplete(output);
-                }
-
-              } catch (IOException e) {
-                callback.onError(e);
+              // cutting rewrites the whole file, so it queues with the merges
+              if (clip != null && clip.isCut()) {
+                DownloadPipeline.mux()
+                    .execute(() -> trimAudio(tag, audioFile, output, clip, cancelled, callback));
+                return;
               }
+              // Hand the finished stream over as the output
+              DownloadPipeline.finish()
+                  .execute(
+                      () -> {
+                        try {
+                          if (cancelled.get()) return;
+                          if (clip != null) Clip.rebase(audioFile);
+                          // a segmented stream is the task's own, not the store's
+                          if (isSegmented(audioStream)) {
+                            callback.onComplete(publish(audioFile, output));
+                            return;
+                          }
+                          File target = output.exists() ? getAvailableFile(output) : output;
+                          store.publish(audioFile, tag, target);
+                          callback.onComplete(target);
+                        } catch (IOException e) {
+                          store.release(tag, false);
+                          callback.onError(e);
+                        }
+                      });
             }
 
             @Override
@@ -156,15 +288,375 @@ public class YoutubeDownloader {
 
             @Override
             public void onMerge() {}
-          },
-          tag);
+          });
+    }
+  }
+
+  /**
+   * Records a live stream from its HLS playlist into {@code output} until the stream ends or the
+   * task is paused; a paused recording ends there and keeps what it has. It records the best
+   * variant of the playlist.
+   */
+  public static void record(
+      String tag, String hlsUrl, File output, ProgressCallback listener, Context context) {
+    try {
+      FileUtils.forceMkdir(output.getParentFile());
+    } catch (IOException e) {
+      listener.onError(e);
+      return;
+    }
+    AtomicBoolean cancelled = new AtomicBoolean(false);
+    cancelFlags.put(tag, cancelled);
+    ProgressCallback callback = new ForgettingCallback(tag, cancelled, listener);
+    record(
+        new HlsPlaylist(hlsUrl),
+        getPartFile(output, null),
+        tag,
+        cancelled,
+        true,
+        new ProgressCallback() {
+          @Override
+          public void onProgress(long downloaded, long total, long speed, String message) {
+            callback.onProgress(
+                downloaded,
+                total,
+                speed,
+                withDetail(context.getString(R.string.recording_live), message));
+          }
+
+          @Override
+          public void onComplete(File file) {
+            DownloadPipeline.finish()
+                .execute(
+                    () -> {
+                      if (cancelled.get()) return;
+                      try {
+                        callback.onComplete(publish(file, output));
+                      } catch (IOException e) {
+                        callback.onError(e);
+                      }
+                    });
+          }
+
+          @Override
+          public void onError(Exception error) {
+            callback.onError(error);
+          }
+
+          @Override
+          public void onCancel() {
+            callback.onCancel();
+          }
+
+          @Override
+          public void onMerge() {}
+        });
+  }
+
+  /**
+   * Fetches one stream of a task into {@code file}: through the store by byte range, or segment by
+   * segment if the stream has no content length to range over.
+   */
+  private static void acquire(
+      File file,
+      String videoUrl,
+      Stream stream,
+      Clip clip,
+      boolean video,
+      String tag,
+      AtomicBoolean cancelled,
+      ProgressCallback callback) {
+    if (isSegmented(stream)) {
+      SegmentSource source = new SequenceSource(stream.getContent(), refresher(videoUrl, stream));
+      record(source, file, tag, cancelled, false, callback);
+      return;
+    }
+    store.acquire(
+        file,
+        stream.getContent(),
+        clip != null ? clip.getRanges(video) : null,
+        tag,
+        refresher(videoUrl, stream),
+        callback);
+  }
+
+  /**
+   * Runs a {@link SegmentedStreamDownloader} for a task. Cancelling deletes what it wrote; pausing
+   * keeps it and its journal to resume from, unless {@code finishOnStop}, which completes it.
+   */
+  private static void record(
+      SegmentSource source,
+      File file,
+      String tag,
+      AtomicBoolean cancelled,
+      boolean finishOnStop,
+      ProgressCallback callback) {
+    SegmentedStreamDownloader recorder =
+        new SegmentedStreamDownloader(source, file, tag, callback);
+    recorders.computeIfAbsent(tag, key -> ConcurrentHashMap.newKeySet()).add(recorder);
+    recording.execute(
+        () -> {
+          try {
+            boolean ended = recorder.run();
+            if (cancelled.get()) {
+              FileUtils.deleteQuietly(file);
+              SegmentedStreamDownloader.clearJournal(file);
+              callback.onCancel();
+            } else if (!ended && !finishOnStop) {
+              callback.onCancel();
+            } else {
+              SegmentedStreamDownloader.clearJournal(file);
+              callback.onComplete(file);
+            }
+          } catch (IOException e) {
+            if (cancelled.get()) {
+              callback.onCancel();
+            } else {
+              callback.onError(e);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            callback.onCancel();
+          } finally {
+            Set<SegmentedStreamDownloader> running = recorders.get(tag);
+            if (running != null) running.remove(recorder);
+            recorders.remove(tag, Collections.emptySet());
+          }
+        });
+  }
+
+  private static void stopRecorders(String tag) {
+    Set<SegmentedStreamDownloader> running = recorders.get(tag);
+    if (running == null) return;
+    for (SegmentedStreamDownloader recorder : running) {
+      recorder.stop();
     }
   }
 
+  // OTF and post-live streams are served by segment number only, without a content length
+  private static boolean isSegmented(Stream stream) {
+    return stream != null && stream.getDeliveryMethod() != DeliveryMethod.PROGRESSIVE_HTTP;
+  }
+
+  // cutting takes the muxer that can drop samples, everything else the fastest one for the format
+  private static MediaMuxer getMuxer(Clip clip) {
+    if (clip == null || !clip.isCut()) return new MuxerSelector();
+    StreamingMp4Muxer muxer = new StreamingMp4Muxer();
+    muxer.setCuts(clip.getMuxCuts());
+    return muxer;
+  }
+
+  /** Writes the audio of an audio-only download without the cuts of its clip and publishes it. */
+  private static void trimAudio(
+      String tag,
+      File audioFile,
+      File output,
+      Clip clip,
+      AtomicBoolean cancelled,
+      ProgressCallback callback) {
+    File trimmedFile = getPartFile(output, null);
+    StreamingMp4Muxer muxer = new StreamingMp4Muxer();
+    muxer.setCuts(clip.getMuxCuts());
+    muxers.put(tag, muxer);
+    try {
+      if (cancelled.get()) return;
+      muxer.trim(audioFile, trimmedFile, callback);
+    } catch (CancellationException e) {
+      FileUtils.deleteQuietly(trimmedFile);
+      return;
+    } catch (IOException | RuntimeException e) {
+      // as for a merge, a muxer that fails unchecked must not leave the task trimming forever
+      FileUtils.deleteQuietly(trimmedFile);
+      store.release(tag, false);
+      callback.onError(e);
+      return;
+    } finally {
+      muxers.remove(tag);
+    }
+    DownloadPipeline.finish()
+        .execute(
+            () -> {
+              if (cancelled.get()) {
+                FileUtils.deleteQuietly(trimmedFile);
+                return;
+              }
+              try {
+                File file = publish(trimmedFile, output);
+                store.release(tag, false);
+                callback.onComplete(file);
+              } catch (IOException e) {
+                FileUtils.deleteQuietly(trimmedFile);
+                store.release(tag, false);
+                callback.onError(e);
+              }
+            });
+  }
+
   public static void cancel(String tag) {
     // Cancel download
-    cancelledTasks.put(tag, true);
-    downloader.cancel(tag);
+    AtomicBoolean cancelled = cancelFlags.remove(tag);
+    if (cancelled != null) cancelled.set(true);
+    store.release(tag, false);
+    stopRecorders(tag);
+    // a merge stops at its next chunk instead of running to the end
+    MediaMuxer muxer = muxers.get(tag);
+    if (muxer != null) muxer.cancel();
+  }
+
+  /**
+   * Stops the transfers of a task but keeps the partial files and their journals, so calling
+   * {@link #download} again with the same output resumes from the last committed offset. A live
+   * recording is finished instead, see {@link #record}.
+   */
+  public static void pause(String tag) {
+    store.release(tag, true);
+    stopRecorders(tag);
+  }
+
+  /**
+   * Passes everything on to the task's callback and forgets the task's cancel flag once it reports
+   * an outcome, so the flags of past tasks do not pile up over a long session.
+   */
+  private static class ForgettingCallback implements ProgressCallback {
+    private final String tag;
+    private final AtomicBoolean cancelled;
+    private final ProgressCallback callback;
+
+    ForgettingCallback(String tag, AtomicBoolean cancelled, ProgressCallback callback) {
+      this.tag = tag;
+      this.cancelled = cancelled;
+      this.callback = callback;
+    }
+
+    @Override
+    public void onProgress(long downloaded, long total, long speed, String message) {
+      callback.onProgress(downloaded, total, speed, message);
+    }
+
+    @Override
+    public void onAvailable(long bytes) {
+      callback.onAvailable(bytes);
+    }
+
+    @Override
+    public void onComplete(File file) {
+      cancelFlags.remove(tag, cancelled);
+      callback.onComplete(file);
+    }
+
+    @Override
+    public void onError(Exception error) {
+      cancelFlags.remove(tag, cancelled);
+      callback.onError(error);
+    }
+
+    @Override
+    public void onCancel() {
+      cancelFlags.remove(tag, cancelled);
+      callback.onCancel();
+    }
+
+    @Override
+    public void onMerge() {
+      callback.onMerge();
+    }
+  }
+
+  /** The partial files a task writes next to its output, whether they exist yet or not. */
+  static List<File> getPartFiles(
+      String videoUrl, VideoStream videoStream, AudioStream audioStream, Clip clip, File output) {
+    List<File> files = new ArrayList<>();
+    // a live recording writes its output's part alone
+    if (audioStream == null) {
+      files.add(getPartFile(output, null));
+      return files;
+    }
+    files.add(getStreamFile(output, videoUrl, audioStream, clip, "audio"));
+    if (videoStream != null) {
+      files.add(getStreamFile(output, videoUrl, videoStream, clip, "video"));
+    }
+    if (videoStream != null || clip != null && clip.isCut()) files.add(getPartFile(output, null));
+    return files;
+  }
+
+  // appends the engine's status, e.g. its connection count, to a progress message
+  private static String withDetail(String message, String detail) {
+    return detail != null ? message + " (" + detail + ")" : message;
+  }
+
+  /**
+   * The partial file of one stream, or of the merged result when {@code stream} is null, e.g.
+   * {@code video.audio.part} for {@code video.mp4}. It lives in the output directory so the
+   * finished file can be renamed into place.
+   */
+  private static File getPartFile(File output, String stream) {
+    String name =
+        stream != null
+            ? FilenameUtils.getBaseName(output.getName()) + "." + stream
+            : output.getName();
+    return new File(output.getParentFile(), name + ".part");
+  }
+
+  /**
+   * The file a stream is fetched into. It is named after the video id and itag when both are
+   * known, e.g. {@code .dQw4w9WgXcQ.140.part}, so every task needing that stream shares it through
+   * the {@link StreamStore}. The streams of a clip belong to their task alone, since they are
+   * rebased in place, and so do segmented streams, which are not fetched through the store.
+   */
+  private static File getStreamFile(
+      File output, String videoUrl, Stream stream, Clip clip, String name) {
+    String videoId = videoUrl != null ? YoutubeExtractor.getVideoId(videoUrl) : null;
+    if (videoId == null
+        || stream == null
+        || stream.getItagItem() == null
+        || clip != null
+        || isSegmented(stream)) {
+      return getPartFile(output, name);
+    }
+    return new File(
+        output.getParentFile(), "." + videoId + "." + stream.getItagItem().id + ".part");
+  }
+
+  /** Atomically renames a finished part to the output, or the next free name if it is taken. */
+  private static File publish(File part, File output) throws IOException {
+    File target = output.exists() ? getAvailableFile(output) : output;
+    Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    return target;
+  }
+
+  // re-extracts the video and picks the same itag, so the byte offsets stay valid
+  private static UrlRefresher refresher(String videoUrl, Stream stream) {
+    if (videoUrl == null || stream.getItagItem() == null) return null;
+    int itag = stream.getItagItem().id;
+    return expiredUrl -> YoutubeExtractor.refreshStreamUrl(videoUrl, itag);
+  }
+
+  /**
+   * The bytes a task still has to write next to its output: what is missing of its streams, and
+   * for a video the merged file, which exists alongside both streams until they are released.
+   * Streams of unknown length count as empty.
+   */
+  private static long getRequiredSpace(
+      File output,
+      boolean merged,
+      long videoLength,
+      long audioLength,
+      File videoFile,
+      File audioFile) {
+    long required = getMissing(audioFile, audioLength) + getMissing(videoFile, videoLength);
+    if (!merged) return required;
+    return required + getMissing(getPartFile(output, null), videoLength + audioLength);
+  }
+
+  // started streams are preallocated, so their blocks are already taken
+  private static long getMissing(File file, long length) {
+    return Math.max(0, length - file.length());
+  }
+
+  // the bytes fetched of a stream, just the planned ranges for a clip
+  private static long getLength(Stream stream, Clip clip, boolean video) {
+    if (clip != null) return clip.getLength(video);
+    return stream.getItagItem() != null ? stream.getItagItem().getContentLength() : 0;
   }
 
   /**
@@ -6,6 +6,8 @@ import android.os.Looper;
 import android.util.Log;
 import com.hhst.youtubelite.MainActivity;
 import com.hhst.youtubelite.common.YoutubeExtractor;
+import com.hhst.youtubelite.downloader.BatchDownloadDialog;
+import com.hhst.youtubelite.downloader.BatchDownloader;
 import com.hhst.youtubelite.downloader.DownloadDialog;
 import com.hhst.youtubelite.extension.ExtensionDialog;
 import java.io.IOException;
@@ -37,6 +39,10 @@ public class JavascriptInterface {
 
   @android.webkit.JavascriptInterface
   public void download(String url) {
+    if (BatchDownloader.isBatchUrl(url)) {
+      mainHandler.post(() -> new BatchDownloadDialog(context).show(url));
+      return;
+    }
     mainHandler.post(() -> new DownloadDialog(url, context).show());
   }
 
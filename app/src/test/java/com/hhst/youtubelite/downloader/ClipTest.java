@@ -0,0 +1,159 @@
+package com.hhst.youtubelite.downloader;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ClipTest {
+
+  @Test
+  public void testIndexMapsTimeRangeToSubsegments() throws IOException {
+    // ten subsegments of one second, 100, 110, 120... bytes long
+    ByteBuffer sidx = ByteBuffer.allocate(32 + 10 * 12);
+    sidx.putInt(sidx.capacity()).put(ascii("sidx")).putInt(0).putInt(1).putInt(1000);
+    sidx.putInt(5000).putInt(16).putShort((short) 0).putShort((short) 10);
+    for (int i = 0; i < 10; ++i) {
+      sidx.putInt(100 + i * 10).putInt(1000).putInt(0x90000000);
+    }
+    sidx.flip();
+
+    SegmentIndex index = SegmentIndex.parse(sidx, 600);
+
+    List<SegmentIndex.Reference> selected = index.select(7500, 9200);
+    assertEquals(3, selected.size());
+    // behind the box, plus first_offset, plus the first two subsegments
+    assertEquals(600 + 152 + 16 + 100 + 110, selected.get(0).offset);
+    assertEquals(7000, selected.get(0).time);
+    assertEquals(selected.get(2).offset + 140 - 1, selected.get(2).end());
+    assertTrue(index.select(15000, 16000).isEmpty());
+  }
+
+  @Test
+  public void testRebaseKeepsStreamsInSync() throws IOException {
+    // the video starts at 750 s, the audio a subsegment earlier at 748 s
+    File video = fragmented(90000, 750L * 90000, 3000, 3);
+    File audio = fragmented(48000, 748L * 48000, 1024, 4);
+
+    Clip.rebase(video, audio);
+    assertEquals(List.of(2L * 90000, 2L * 90000 + 3000, 2L * 90000 + 6000), decodeTimes(video));
+    assertEquals(List.of(0L, 1024L, 2048L, 3072L), decodeTimes(audio));
+
+    // the amount comes from the files, a second pass finds nothing to move
+    Clip.rebase(video, audio);
+    assertEquals(2L * 90000, (long) decodeTimes(video).get(0));
+    assertEquals(0L, (long) decodeTimes(audio).get(0));
+  }
+
+  @Test
+  public void testParseTime() {
+    assertEquals(750_000, Clip.parseTime("12:30"));
+    assertEquals(3_723_500, Clip.parseTime(" 1:02:03.5 "));
+    assertEquals(90_000, Clip.parseTime("90"));
+    assertEquals(-1, Clip.parseTime("1:2:3:4"));
+    assertEquals(-1, Clip.parseTime("NaN"));
+    assertEquals("1:02:03", Clip.formatTime(3_723_500));
+    assertEquals("12.30-15.00", new Clip(750_000, 900_000).describe());
+  }
+
+  private static List<Long> decodeTimes(File file) throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    List<Long> times = new ArrayList<>();
+    for (int at = indexOf(data, "tfdt", 0); at >= 0; at = indexOf(data, "tfdt", at + 4)) {
+      times.add(data.getLong(at + 8));
+    }
+    return times;
+  }
+
+  // init segment and one sample per fragment, as fetched for a clip: no sidx in between
+  private static File fragmented(int timescale, long start, int duration, int count)
+      throws IOException {
+    List<byte[]> boxes = new ArrayList<>();
+    boxes.add(box("ftyp", ascii("dash0000")));
+    boxes.add(moov(timescale));
+    for (int i = 0; i < count; ++i) {
+      byte[] sample = new byte[16];
+      boxes.add(moof(start + i * (long) duration, duration));
+      boxes.add(box("mdat", sample));
+    }
+    File file = File.createTempFile("clip", ".mp4");
+    file.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      for (byte[] box : boxes) {
+        channel.write(ByteBuffer.wrap(box));
+      }
+    }
+    return file;
+  }
+
+  private static byte[] moof(long decodeTime, int duration) {
+    ByteBuffer tfhd = ByteBuffer.allocate(12).putInt(0x20000 | 0x8).putInt(1).putInt(duration);
+    ByteBuffer tfdt = ByteBuffer.allocate(12).putInt(0x01000000).putLong(decodeTime);
+    ByteBuffer trun = ByteBuffer.allocate(16).putInt(0x201).putInt(1).putInt(0).putInt(16);
+    return box(
+        "moof",
+        box("mfhd", new byte[8]),
+        box(
+            "traf",
+            box("tfhd", tfhd.array()),
+            box("tfdt", tfdt.array()),
+            box("trun", trun.array())));
+  }
+
+  private static byte[] moov(int timescale) {
+    ByteBuffer mvhd = ByteBuffer.allocate(100).putInt(0).putInt(0).putInt(0).putInt(1000);
+    ByteBuffer tkhd = ByteBuffer.allocate(84).putInt(3).putInt(0).putInt(0).putInt(1);
+    ByteBuffer mdhd = ByteBuffer.allocate(24).putInt(0).putInt(0).putInt(0).putInt(timescale);
+    ByteBuffer hdlr = ByteBuffer.allocate(24).putInt(0).putInt(0).put(ascii("vide"));
+    ByteBuffer trex = ByteBuffer.allocate(24).putInt(0).putInt(1).putInt(1);
+    return box(
+        "moov",
+        box("mvhd", mvhd.array()),
+        box(
+            "trak",
+            box("tkhd", tkhd.array()),
+            box(
+                "mdia",
+                box("mdhd", mdhd.array()),
+                box("hdlr", hdlr.array()),
+                box("minf", box("stbl")))),
+        box("mvex", box("trex", trex.array())));
+  }
+
+  private static byte[] box(String type, byte[]... bodies) {
+    int size = 8;
+    for (byte[] body : bodies) {
+      size += body.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size).putInt(size).put(ascii(type));
+    for (byte[] body : bodies) {
+      buffer.put(body);
+    }
+    return buffer.array();
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static int indexOf(ByteBuffer data, String type, int from) {
+    byte[] needle = ascii(type);
+    byte[] haystack = data.array();
+    outer:
+    for (int i = from; i <= haystack.length - needle.length; ++i) {
+      for (int j = 0; j < needle.length; ++j) {
+        if (haystack[i + j] != needle[j]) continue outer;
+      }
+      return i;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,91 @@
+package com.hhst.youtubelite.downloader;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionControllerTest {
+
+  private AtomicLong now;
+  private ConnectionController controller;
+
+  @Before
+  public void setUp() {
+    now = new AtomicLong(0);
+    controller = new ConnectionController(1, 4, 8, now::get);
+  }
+
+  @Test
+  public void testGrowsAfterCleanWindow() throws InterruptedException {
+    controller.acquire();
+    now.addAndGet(2000);
+    controller.onBytes(1_000_000);
+
+    assertEquals("Limit should grow by one connection", 5, controller.getLimit());
+    assertTrue(controller.describe().contains("growing"));
+  }
+
+  @Test
+  public void testNeverGrowsBeyondMax() throws InterruptedException {
+    controller.acquire();
+    for (int i = 0; i < 10; i++) {
+      now.addAndGet(2000);
+      controller.onBytes(1_000_000);
+    }
+
+    assertEquals("Limit should stop at the maximum", 8, controller.getLimit());
+  }
+
+  @Test
+  public void testThrottlingHalvesLimit() {
+    controller.onError(true);
+
+    assertEquals("429/503 should halve the limit", 2, controller.getLimit());
+    assertTrue(controller.describe().contains("backing off"));
+  }
+
+  @Test
+  public void testBurstOfErrorsCountsOnce() {
+    controller.onError(false);
+    controller.onError(false);
+    controller.onError(false);
+
+    assertEquals("Errors within one window should decrease once", 3, controller.getLimit());
+  }
+
+  @Test
+  public void testNeverShrinksBelowMin() {
+    for (int i = 0; i < 10; i++) {
+      now.addAndGet(2000);
+      controller.onError(true);
+    }
+
+    assertEquals("Limit should stop at the minimum", 1, controller.getLimit());
+  }
+
+  @Test
+  public void testThroughputCollapseShrinksLimit() throws InterruptedException {
+    controller.acquire();
+    now.addAndGet(2000);
+    controller.onBytes(10_000_000);
+    assertEquals(5, controller.getLimit());
+
+    now.addAndGet(2000);
+    controller.onBytes(1_000_000);
+
+    assertEquals("A saturated link should shrink the limit", 3, controller.getLimit());
+  }
+
+  @Test
+  public void testTryAcquireGivesUpAtLimit() throws InterruptedException {
+    for (int i = 0; i < 4; i++) {
+      assertTrue(controller.tryAcquire(10));
+    }
+
+    assertFalse("No connection beyond the limit", controller.tryAcquire(10));
+    controller.release();
+    assertTrue("A released connection can be acquired again", controller.tryAcquire(10));
+  }
+}
@@ -0,0 +1,34 @@
+package com.hhst.youtubelite.downloader;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class SegmentedStreamDownloaderTest {
+
+  @Test
+  public void testStripInitKeepsOnlyMediaBoxes() {
+    ByteBuffer segment = ByteBuffer.allocate(16 + 24 + 16 + 12);
+    box(segment, "ftyp", 16);
+    box(segment, "moov", 24);
+    box(segment, "moof", 16);
+    box(segment, "mdat", 12);
+
+    byte[] stripped = SegmentedStreamDownloader.stripInit(segment.array());
+
+    assertEquals(28, stripped.length);
+    assertEquals("moof", new String(stripped, 4, 4, StandardCharsets.ISO_8859_1));
+    assertEquals("mdat", new String(stripped, 20, 4, StandardCharsets.ISO_8859_1));
+    // a transport stream segment is no box list and stays as it is
+    byte[] ts = new byte[188];
+    ts[0] = 0x47;
+    assertSame(ts, SegmentedStreamDownloader.stripInit(ts));
+  }
+
+  private static void box(ByteBuffer buffer, String type, int size) {
+    buffer.putInt(size).put(type.getBytes(StandardCharsets.ISO_8859_1));
+    buffer.position(buffer.position() + size - 8);
+  }
+}
@@ -0,0 +1,307 @@
+package com.hhst.youtubelite.downloader;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import org.junit.Test;
+
+public class StreamingMp4MuxerTest {
+
+  @Test
+  public void testProgressiveOffsetsPointAtSameChunks() throws IOException {
+    File video = progressive("vide", "V", 5);
+    File audio = progressive("soun", "A", 3);
+    File output = File.createTempFile("muxed", ".mp4");
+
+    new StreamingMp4Muxer().merge(video, audio, output);
+
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(output.toPath()));
+    List<Long> offsets = new ArrayList<>();
+    for (int at = indexOf(data, "co64", 0); at >= 0; at = indexOf(data, "co64", at + 4)) {
+      int count = data.getInt(at + 8);
+      for (int i = 0; i < count; ++i) {
+        offsets.add(data.getLong(at + 12 + i * 8));
+      }
+    }
+    assertEquals(8, offsets.size());
+    for (int i = 0; i < 8; ++i) {
+      String expected = i < 5 ? "V" + i : "A" + (i - 5);
+      assertEquals(expected, string(data, offsets.get(i).intValue(), 2));
+    }
+    assertEquals("tkhd IDs should be renumbered", 2, trackIds(data).size());
+  }
+
+  @Test
+  public void testFragmentsInterleavedWithValidOffsets() throws IOException {
+    File video = fragmented("vide", "V", 90000, 3000, 3, false);
+    File audio = fragmented("soun", "A", 48000, 1600, 4, true);
+    File output = File.createTempFile("muxed", ".mp4");
+
+    new StreamingMp4Muxer().merge(video, audio, output);
+
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(output.toPath()));
+    assertEquals(List.of(1, 2), trackIds(data));
+    StringBuilder order = new StringBuilder();
+    int sequence = 0;
+    for (int moof = indexOf(data, "moof", 0); moof >= 0; moof = indexOf(data, "moof", moof + 4)) {
+      int start = moof - 4;
+      assertEquals(++sequence, data.getInt(indexOf(data, "mfhd", moof) + 8));
+      int tfhd = indexOf(data, "tfhd", moof);
+      boolean absolute = (data.getInt(tfhd + 4) & 0x1) != 0;
+      long base = absolute ? data.getLong(tfhd + 12) : start;
+      int trun = indexOf(data, "trun", moof);
+      String sample = string(data, (int) (base + data.getInt(trun + 12)), 2);
+      assertEquals(data.getInt(tfhd + 8) == 1 ? 'V' : 'A', sample.charAt(0));
+      order.append(sample);
+    }
+    // fragments of both tracks last 1/30 s, so they alternate
+    assertEquals("V0A0V1A1V2A2A3", order.toString());
+  }
+
+  @Test
+  public void testCutsDropSamplesAndCloseGaps() throws IOException {
+    // fragments of 1 s of video and 1.5 s of audio, in milliseconds
+    File video = fragmented("vide", "V", 250, 4, 4);
+    File audio = fragmented("soun", "A", 100, 15, 3);
+    File output = File.createTempFile("muxed", ".mp4");
+    output.deleteOnExit();
+
+    StreamingMp4Muxer muxer = new StreamingMp4Muxer();
+    // the video resumes at its fragment at 2 s, the cut ends there instead
+    muxer.setCuts(List.of(new long[] {1200, 2100}));
+    muxer.merge(video, audio, output);
+
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(output.toPath()));
+    List<String> fragments = new ArrayList<>();
+    for (int moof = indexOf(data, "moof", 0); moof >= 0; moof = indexOf(data, "moof", moof + 4)) {
+      int trun = indexOf(data, "trun", moof);
+      fragments.add(
+          data.getLong(indexOf(data, "tfdt", moof) + 8)
+              + " "
+              + data.getInt(trun + 8)
+              + " "
+              + string(data, moof - 4 + data.getInt(trun + 12), 4).trim());
+    }
+    assertEquals(
+        List.of(
+            "0 4 V0-0",
+            "0 12 A0-0",
+            "1000 1 V1-0",
+            "1200 10 A1-5",
+            "1200 4 V2-0",
+            "2200 4 V3-0",
+            "2200 15 A2-0"),
+        fragments);
+  }
+
+  @Test(expected = CancellationException.class)
+  public void testCancelledMergeStops() throws IOException {
+    File video = progressive("vide", "V", 5);
+    File audio = progressive("soun", "A", 3);
+    File output = File.createTempFile("muxed", ".mp4");
+    output.deleteOnExit();
+
+    StreamingMp4Muxer muxer = new StreamingMp4Muxer();
+    muxer.cancel();
+    muxer.merge(video, audio, output);
+  }
+
+  private static List<Integer> trackIds(ByteBuffer data) {
+    List<Integer> ids = new ArrayList<>();
+    for (int at = indexOf(data, "tkhd", 0); at >= 0; at = indexOf(data, "tkhd", at + 4)) {
+      ids.add(data.getInt(at + (data.get(at + 4) == 1 ? 24 : 16)));
+    }
+    return ids;
+  }
+
+  // a plain MP4 whose chunks are "<prefix><index>" padded to 16 bytes behind a free box
+  private static File progressive(String handler, String prefix, int chunks) throws IOException {
+    ByteArrayOutputStream media = new ByteArrayOutputStream();
+    for (int i = 0; i < chunks; ++i) {
+      media.write(pad(prefix + i, 16));
+    }
+    byte[] moov = moov(handler, new long[chunks], false, 1000);
+    // behind the 16 byte free box and the mdat header
+    long start = box("ftyp", ascii("isom0000")).length + moov.length + 16 + 8;
+    long[] offsets = new long[chunks];
+    for (int i = 0; i < chunks; ++i) {
+      offsets[i] = start + i * 16L;
+    }
+    return write(
+        box("ftyp", ascii("isom0000")),
+        moov(handler, offsets, false, 1000),
+        box("free", new byte[8]),
+        box("mdat", media.toByteArray()));
+  }
+
+  // one sample per fragment, with an absolute base data offset or one relative to the moof
+  private static File fragmented(
+      String handler, String prefix, int timescale, int duration, int count, boolean absolute)
+      throws IOException {
+    List<byte[]> boxes = new ArrayList<>();
+    boxes.add(box("ftyp", ascii("dash0000")));
+    boxes.add(moov(handler, null, true, timescale));
+    boxes.add(box("sidx", new byte[24]));
+    long position = 0;
+    for (byte[] box : boxes) {
+      position += box.length;
+    }
+    for (int i = 0; i < count; ++i) {
+      byte[] sample = pad(prefix + i, 32);
+      long base = absolute ? position : -1;
+      // either way the data offset counts from the start of the moof
+      int size = moof(base, i * (long) duration, duration, 0).length;
+      byte[] moof = moof(base, i * (long) duration, duration, size + 8);
+      boxes.add(moof);
+      boxes.add(box("mdat", sample));
+      position += moof.length + 8 + sample.length;
+    }
+    return write(boxes.toArray(new byte[0][]));
+  }
+
+  // several 16 byte samples "<prefix><fragment>-<sample>" per fragment, in milliseconds
+  private static File fragmented(
+      String handler, String prefix, int duration, int samples, int count) throws IOException {
+    List<byte[]> boxes = new ArrayList<>();
+    boxes.add(box("ftyp", ascii("dash0000")));
+    boxes.add(moov(handler, null, true, 1000));
+    for (int i = 0; i < count; ++i) {
+      ByteArrayOutputStream media = new ByteArrayOutputStream();
+      ByteBuffer trun = ByteBuffer.allocate(12 + samples * 4).putInt(0x201).putInt(samples);
+      trun.putInt(0);
+      for (int j = 0; j < samples; ++j) {
+        media.write(pad(prefix + i + "-" + j, 16));
+        trun.putInt(16);
+      }
+      ByteBuffer tfhd = ByteBuffer.allocate(12).putInt(0x20000 | 0x8).putInt(7).putInt(duration);
+      ByteBuffer tfdt = ByteBuffer.allocate(12).putInt(0x01000000);
+      tfdt.putLong(i * (long) samples * duration);
+      // moof, mfhd, traf, tfhd, tfdt and the trun header, then the mdat header
+      trun.putInt(8, 8 + 16 + 8 + 20 + 20 + 8 + trun.capacity() + 8);
+      boxes.add(
+          box(
+              "moof",
+              box("mfhd", new byte[8]),
+              box(
+                  "traf",
+                  box("tfhd", tfhd.array()),
+                  box("tfdt", tfdt.array()),
+                  box("trun", trun.array()))));
+      boxes.add(box("mdat", media.toByteArray()));
+    }
+    return write(boxes.toArray(new byte[0][]));
+  }
+
+  private static byte[] moof(long base, long decodeTime, int duration, int dataOffset) {
+    ByteBuffer tfhd = ByteBuffer.allocate(base >= 0 ? 20 : 12);
+    tfhd.putInt(base >= 0 ? 0x1 | 0x8 : 0x20000 | 0x8).putInt(7);
+    if (base >= 0) tfhd.putLong(base);
+    tfhd.putInt(duration);
+    ByteBuffer tfdt = ByteBuffer.allocate(12).putInt(0x01000000).putLong(decodeTime);
+    ByteBuffer trun = ByteBuffer.allocate(16).putInt(0x201).putInt(1).putInt(dataOffset);
+    trun.putInt(32);
+    return box(
+        "moof",
+        box("mfhd", ByteBuffer.allocate(8).putInt(0).putInt(42).array()),
+        box(
+            "traf",
+            box("tfhd", tfhd.array()),
+            box("tfdt", tfdt.array()),
+            box("trun", trun.array())));
+  }
+
+  private static byte[] moov(String handler, long[] offsets, boolean fragmented, int timescale) {
+    ByteBuffer mvhd = ByteBuffer.allocate(100).putInt(0).putInt(0).putInt(0).putInt(timescale);
+    ByteBuffer tkhd = ByteBuffer.allocate(84).putInt(3).putInt(0).putInt(0).putInt(7);
+    tkhd.putInt(0).putInt(timescale);
+    ByteBuffer mdhd = ByteBuffer.allocate(24).putInt(0).putInt(0).putInt(0).putInt(timescale);
+    ByteBuffer hdlr = ByteBuffer.allocate(24).putInt(0).putInt(0).put(ascii(handler));
+    byte[] stbl;
+    if (fragmented) {
+      stbl = box("stbl");
+    } else {
+      ByteBuffer stco = ByteBuffer.allocate(8 + offsets.length * 4).putInt(0);
+      stco.putInt(offsets.length);
+      for (long offset : offsets) {
+        stco.putInt((int) offset);
+      }
+      stbl = box("stbl", box("stco", stco.array()));
+    }
+    byte[] trak =
+        box(
+            "trak",
+            box("tkhd", tkhd.array()),
+            box("tref", box("chap", new byte[4])),
+            box(
+                "mdia",
+                box("mdhd", mdhd.array()),
+                box("hdlr", hdlr.array()),
+                box("minf", stbl)));
+    if (!fragmented) {
+      return box("moov", box("mvhd", mvhd.array()), trak);
+    }
+    ByteBuffer trex = ByteBuffer.allocate(24).putInt(0).putInt(7).putInt(1);
+    return box("moov", box("mvhd", mvhd.array()), trak, box("mvex", box("trex", trex.array())));
+  }
+
+  private static byte[] box(String type, byte[]... bodies) {
+    int size = 8;
+    for (byte[] body : bodies) {
+      size += body.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size).putInt(size).put(ascii(type));
+    for (byte[] body : bodies) {
+      buffer.put(body);
+    }
+    return buffer.array();
+  }
+
+  private static File write(byte[]... boxes) throws IOException {
+    File file = File.createTempFile("input", ".mp4");
+    file.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      for (byte[] box : boxes) {
+        channel.write(ByteBuffer.wrap(box));
+      }
+    }
+    return file;
+  }
+
+  private static byte[] pad(String text, int size) {
+    byte[] bytes = new byte[size];
+    byte[] ascii = ascii(text);
+    System.arraycopy(ascii, 0, bytes, 0, ascii.length);
+    return bytes;
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String string(ByteBuffer data, int offset, int length) {
+    return new String(data.array(), offset, length, StandardCharsets.US_ASCII);
+  }
+
+  private static int indexOf(ByteBuffer data, String type, int from) {
+    byte[] needle = ascii(type);
+    byte[] haystack = data.array();
+    outer:
+    for (int i = from; i <= haystack.length - needle.length; ++i) {
+      for (int j = 0; j < needle.length; ++j) {
+        if (haystack[i + j] != needle[j]) continue outer;
+      }
+      return i;
+    }
+    return -1;
+  }
+}